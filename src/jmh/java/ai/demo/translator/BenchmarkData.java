@@ -0,0 +1,59 @@
+package ai.demo.translator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Random inputs and weights of the benchmarks (the sizes are the sizes of the BART base model)
+ */
+final class BenchmarkData
+{
+    static final int HIDDEN_SIZE = 768;
+    static final int HEAD_COUNT = 12;
+    static final int TOKEN_COUNT = 50265;
+
+    private BenchmarkData() {}
+
+    static float[] randomVector(Random random, int size)
+    {
+        float[] vector = new float[size];
+        for (int i = 0; i < size; i++)
+        {
+            vector[i] = random.nextFloat() * 2 - 1;
+        }
+
+        return vector;
+    }
+
+    static FloatTensor randomMatrix(Random random, int rows, int cols)
+    {
+        return new FloatTensor(rows, cols, randomVector(random, rows * cols));
+    }
+
+    /**
+     * Write a model with random parameters into a new temporary directory
+     */
+    static String createModel(int hiddenSize, int headCount, int layerCount, int tokenCount, int contextSize) throws IOException
+    {
+        String path = Files.createTempDirectory("translator-benchmark").toString();
+        new SyntheticModel(hiddenSize, headCount, layerCount, layerCount, tokenCount, contextSize, 1).write(path);
+
+        return path;
+    }
+
+    static void deleteDirectory(File directory)
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                deleteDirectory(file);
+            }
+        }
+
+        directory.delete();
+    }
+}
@@ -0,0 +1,53 @@
+package ai.demo.translator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vector-matrix multiplications of the decoder step: the MLP layer ([768] x [768 x 3072])
+ * and the logits ([768] x [50265 x 768] transposed)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark
+{
+    private float[] vector;
+    private FloatTensor mlpWeights;
+    private FloatTensor tokenEmbeddings;
+
+    private float[] mlpResult;
+    private float[] logits;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(1);
+
+        vector = BenchmarkData.randomVector(random, BenchmarkData.HIDDEN_SIZE);
+        mlpWeights = BenchmarkData.randomMatrix(random, BenchmarkData.HIDDEN_SIZE, BenchmarkData.HIDDEN_SIZE * 4);
+        tokenEmbeddings = BenchmarkData.randomMatrix(random, BenchmarkData.TOKEN_COUNT, BenchmarkData.HIDDEN_SIZE);
+
+        mlpResult = new float[BenchmarkData.HIDDEN_SIZE * 4];
+        logits = new float[BenchmarkData.TOKEN_COUNT];
+    }
+
+    @Benchmark
+    public float[] multiplyVectorByMatrix()
+    {
+        Util.multiplyVectorByMatrix(vector, mlpWeights, mlpResult);
+        return mlpResult;
+    }
+
+    @Benchmark
+    public float[] multiplyVectorByTransposedMatrix()
+    {
+        Util.multiplyVectorByTransposedMatrix(vector, tokenEmbeddings, logits);
+        return logits;
+    }
+}
@@ -0,0 +1,85 @@
+package ai.demo.translator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single encoder layer (processing all input tokens) and a single decoder layer step (one new token)
+ * with random weights at the size of the BART base model (hidden size: 768, 12 heads)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayerBenchmark
+{
+    // Number of the input tokens, and the position of the decoded token
+    @Param({"32", "128"})
+    public int length;
+
+    private String path;
+
+    private TransformerEncoder encoder;
+    private FloatTensor inputHiddenStates;
+
+    private TransformerDecoder decoder;
+    private TranslationSession session;
+    private float[] decoderInput;
+    private float[] hiddenState;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        // The embeddings aren't used, so a small vocabulary is enough
+        path = BenchmarkData.createModel(BenchmarkData.HIDDEN_SIZE, BenchmarkData.HEAD_COUNT, 1, 1000, 256);
+        Settings settings = new Settings(path);
+
+        Random random = new Random(1);
+
+        encoder = new TransformerEncoder(0, settings);
+        inputHiddenStates = BenchmarkData.randomMatrix(random, length, BenchmarkData.HIDDEN_SIZE);
+
+        decoder = new TransformerDecoder(0, settings);
+        session = new TranslationSession(settings);
+
+        // The cross attention uses the encoder outputs, the self attention the previous positions
+        TransformerDecoder.calculateKeysAndValues(new TransformerDecoder[] {decoder}, encoder.execute(inputHiddenStates), session);
+
+        for (int pos = 0; pos < length; pos++)
+        {
+            decoder.execute(BenchmarkData.randomVector(random, BenchmarkData.HIDDEN_SIZE), session);
+        }
+
+        decoderInput = BenchmarkData.randomVector(random, BenchmarkData.HIDDEN_SIZE);
+        hiddenState = new float[BenchmarkData.HIDDEN_SIZE];
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        BenchmarkData.deleteDirectory(new File(path));
+    }
+
+    @Benchmark
+    public FloatTensor encoderLayer()
+    {
+        return encoder.execute(inputHiddenStates);
+    }
+
+    @Benchmark
+    public float[] decoderLayerStep()
+    {
+        System.arraycopy(decoderInput, 0, hiddenState, 0, hiddenState.length);
+        decoder.execute(hiddenState, session);
+
+        // Remove the new position, so every step decodes the same position
+        session.truncate(length);
+
+        return hiddenState;
+    }
+}
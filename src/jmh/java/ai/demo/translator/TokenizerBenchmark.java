@@ -0,0 +1,68 @@
+package ai.demo.translator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizer: encoding and decoding of a sentence, and the byte pair encoding of a single word
+ * The vocabulary has the size of the BART vocabulary (50265 tokens): the merges of a small sample text and random
+ * merges of letter sequences (see SyntheticModel). The benchmark text isn't part of the sample, so its words are
+ * built by multiple merges, but the real merge table would split them differently (the timings are approximations)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizerBenchmark
+{
+    private static final String TEXT = "Yesterday the committee published its preliminary report about renewable energy, " +
+            "including several recommendations for municipalities (for example 67890 or https://example.org).";
+
+    private String path;
+    private Tokenizer tokenizer;
+    private List<Integer> tokens;
+    private String word;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        // Only the tokenizer is used, so the layers are tiny
+        path = BenchmarkData.createModel(8, 1, 1, BenchmarkData.TOKEN_COUNT, 16);
+
+        tokenizer = new Tokenizer(path);
+        tokens = tokenizer.encode(TEXT);
+
+        // "Ġrecommendations" (the leading space is represented by "Ġ")
+        word = "Ġrecommendations";
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        BenchmarkData.deleteDirectory(new File(path));
+    }
+
+    @Benchmark
+    public List<Integer> encode()
+    {
+        return tokenizer.encode(TEXT);
+    }
+
+    @Benchmark
+    public String decode()
+    {
+        return tokenizer.decode(tokens);
+    }
+
+    @Benchmark
+    public String bpe()
+    {
+        return tokenizer.bpe(word);
+    }
+}
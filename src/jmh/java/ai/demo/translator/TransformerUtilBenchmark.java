@@ -0,0 +1,85 @@
+package ai.demo.translator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Element-wise operations of the transformer: softmax and token selection over the logits,
+ * normalization of a hidden state, and the gelu activation of the MLP neurons
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformerUtilBenchmark
+{
+    private float[] logits;
+    private float[] probabilities;
+
+    private float[] hiddenState;
+    private float[] normWeights;
+    private float[] normBiases;
+    private float[] normalized;
+
+    private float[] neurons;
+    private float[] activations;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(1);
+
+        logits = BenchmarkData.randomVector(random, BenchmarkData.TOKEN_COUNT);
+        probabilities = new float[BenchmarkData.TOKEN_COUNT];
+
+        hiddenState = BenchmarkData.randomVector(random, BenchmarkData.HIDDEN_SIZE);
+        normWeights = BenchmarkData.randomVector(random, BenchmarkData.HIDDEN_SIZE);
+        normBiases = BenchmarkData.randomVector(random, BenchmarkData.HIDDEN_SIZE);
+        normalized = new float[BenchmarkData.HIDDEN_SIZE];
+
+        neurons = BenchmarkData.randomVector(random, BenchmarkData.HIDDEN_SIZE * 4);
+        activations = new float[BenchmarkData.HIDDEN_SIZE * 4];
+    }
+
+    @Benchmark
+    public float[] softmax()
+    {
+        TransformerUtil.softmax(logits, logits.length, probabilities);
+        return probabilities;
+    }
+
+    @Benchmark
+    public float[] normalization()
+    {
+        TransformerUtil.normalization(hiddenState, normWeights, normBiases, 1e-5f, normalized);
+        return normalized;
+    }
+
+    @Benchmark
+    public float[] gelu()
+    {
+        for (int i = 0; i < neurons.length; i++)
+        {
+            activations[i] = TransformerUtil.gelu(neurons[i]);
+        }
+
+        return activations;
+    }
+
+    @Benchmark
+    public int findBest()
+    {
+        return TransformerUtil.findBest(logits);
+    }
+
+    @Benchmark
+    public List<TransformerUtil.IndexedValue> findBestFour()
+    {
+        return TransformerUtil.findBest(logits, 4);
+    }
+}
@@ -1,8 +1,9 @@
 package ai.demo.translator;
 
 import java.io.*;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class App
 {
@@ -29,9 +30,11 @@ public class App
 
             OUT.println("Path: " + path);
 
-            Settings settings = new Settings(path);
+            Settings settings = new Settings(path, readOverrides(args));
 
             OUT.println("Number of parameters: " + Math.round(settings.getParameterSize() / 1000000d) + " M");
+            OUT.println("Compute kernel: " + Util.getKernelName() + ", threads: " + Util.getThreadCount());
+            OUT.println("Weight format: " + settings.getWeightFormat().getName());
 
             OUT.print("\nLoading trained parameters... ");
             Tokenizer tokenizer = new Tokenizer(path);
@@ -48,12 +51,8 @@ public class App
                 // Split the input text into tokens
                 List<Integer> inputTokens = tokenizer.encode(input);
 
-                // Use the Transformer
-                List<Integer> outputTokens = transformer.processTokens(inputTokens);
-
-                // Convert the output to text and print it
-                String response = tokenizer.decode(outputTokens);
-                print(response, outputTokens, tokenizer);
+                // Use the Transformer, the translated text is printed as it is generated
+                transformer.processTokens(inputTokens, OUT::print);
             }
         }
         catch (Exception e)
@@ -62,21 +61,34 @@ public class App
         }
     }
 
-    private static void print(String response, List<Integer> outputTokens, Tokenizer tokenizer)
+    /**
+     * The parameters after the path can override the entries of the model.properties file (in key=value format)
+     */
+    static Map<String, String> readOverrides(String... args) throws Exception
     {
-        // The response was printed token by token, but for multi-token characters only "�" will be displayed
+        Map<String, String> overrides = new HashMap<>();
 
-        // Here we recreate the token by token decoded response (which wasn't returned)
-        StringBuilder tokenByTokenResponse = new StringBuilder();
-        for (int token: outputTokens)
+        for (int i = 1; i < args.length; i++)
         {
-            tokenByTokenResponse.append(tokenizer.decode(Collections.singletonList(token)));
+            if ( ! addOverride(overrides, args[i]))
+            {
+                throw new Exception("Unrecognizable parameter (expected key=value): " + args[i]);
+            }
         }
 
-        // If the token by token decoded result is different to the final decoded result, print the corrected version
-        if ( ! tokenByTokenResponse.toString().equals(response))
-        {
-            OUT.print("\nCorrected unicode response:\n" + response);
-        }
+        return overrides;
+    }
+
+    /**
+     * Add a key=value parameter to the overrides (split at the first '=', so the value can contain '=' as well)
+     * Returns false if the parameter isn't in key=value format
+     */
+    static boolean addOverride(Map<String, String> overrides, String arg)
+    {
+        int index = arg.indexOf('=');
+        if (index <= 0) return false;
+
+        overrides.put(arg.substring(0, index), arg.substring(index + 1));
+        return true;
     }
 }
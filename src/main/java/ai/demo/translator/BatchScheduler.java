@@ -0,0 +1,403 @@
+package ai.demo.translator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Continuous batching of concurrent translations
+ * The submitted translations are processed by a single scheduler thread: in every step the next token of all active
+ * translations is calculated together (the decoders multiply the weights by the matrix of all hidden states, so the
+ * weights are read from the memory only once per step, not once per translation)
+ * The finished translations leave the batch and the waiting ones join it between the steps
+ * The batching gives the same result as the greedy decoding (Transformer.processTokens without beam search and
+ * speculative decoding), which can be checked by the DecodingCheck
+ */
+public class BatchScheduler implements AutoCloseable
+{
+    // Marker of the end of the generated tokens (passed to the thread of a blocking processTokens call)
+    private static final int END = -1;
+
+    private final Transformer transformer;
+    private final int maxBatchSize;
+
+    private final BlockingQueue<BatchTranslation> waiting = new LinkedBlockingQueue<>();
+    private final Thread thread;
+
+    private volatile boolean isRunning = true;
+
+    /**
+     * Initialization (it starts the scheduler thread)
+     */
+    public BatchScheduler(Transformer transformer, int maxBatchSize)
+    {
+        if (maxBatchSize < 1)
+        {
+            throw new RuntimeException("The batch size should be at least 1 (" + maxBatchSize + ")");
+        }
+
+        this.transformer = transformer;
+        this.maxBatchSize = maxBatchSize;
+
+        this.thread = new Thread(this::run, "translator-batch-scheduler");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Create a scheduler by the max.batch.size setting for the server and the batch file translation
+     * It returns null if the batching is disabled (max.batch.size=0), or the beam search or the speculative decoding
+     * is used (these process their translations separately)
+     */
+    public static BatchScheduler create(Transformer transformer)
+    {
+        Settings settings = transformer.getSettings();
+
+        if (settings.getMaxBatchSize() == 0 || settings.getBeamSize() > 1 || settings.getDraftSize() > 0) return null;
+
+        return new BatchScheduler(transformer, settings.getMaxBatchSize());
+    }
+
+    /**
+     * Submit a translation, the result will contain the generated tokens (the same as Transformer.processTokens)
+     */
+    public CompletableFuture<List<Integer>> submit(List<Integer> inputTokens)
+    {
+        return submit(inputTokens, transformer.getSettings().getMaxOutputLength(), token -> {});
+    }
+
+    /**
+     * Submit a translation with a maximum output length, passing the new tokens to the tokenConsumer one by one
+     * (The tokenConsumer is called by the scheduler thread, so it shouldn't block. If it throws an exception,
+     * the translation fails. A cancelled result future stops the translation.)
+     */
+    public CompletableFuture<List<Integer>> submit(List<Integer> inputTokens, int maxOutputLength, IntConsumer tokenConsumer)
+    {
+        Settings settings = transformer.getSettings();
+
+        if (maxOutputLength < 1 || maxOutputLength > settings.getContextSize())
+        {
+            throw new RuntimeException("The maximum output length should be between 1 and the context size (" + settings.getContextSize() + "): " + maxOutputLength);
+        }
+
+        if ( ! isRunning)
+        {
+            throw new RuntimeException("The batch scheduler is closed.");
+        }
+
+        BatchTranslation translation = new BatchTranslation(new ArrayList<>(inputTokens), maxOutputLength, tokenConsumer);
+        waiting.add(translation);
+
+        // If the scheduler was closed in the meantime, the waiting translations may be already cancelled
+        if ( ! isRunning && waiting.remove(translation))
+        {
+            translation.result.completeExceptionally(new RuntimeException("The batch scheduler is closed."));
+        }
+
+        return translation.result;
+    }
+
+    /**
+     * Translate the input tokens by the batched decoding, waiting for the result (the same as Transformer.processTokens)
+     */
+    public List<Integer> processTokens(List<Integer> inputTokens)
+    {
+        return processTokens(inputTokens, transformer.getSettings().getMaxOutputLength(), token -> {});
+    }
+
+    /**
+     * Translate the input tokens with a maximum output length, waiting for the result
+     */
+    public List<Integer> processTokens(List<Integer> inputTokens, int maxOutputLength)
+    {
+        return processTokens(inputTokens, maxOutputLength, token -> {});
+    }
+
+    /**
+     * Translate the input tokens, passing the text of the generated tokens to the textConsumer as soon as it is
+     * available (the same as Transformer.processTokens, the textConsumer is called by the current thread)
+     */
+    public List<Integer> processTokens(List<Integer> inputTokens, Consumer<String> textConsumer)
+    {
+        return transformer.decodeText(textConsumer, tokenConsumer ->
+                processTokens(inputTokens, transformer.getSettings().getMaxOutputLength(), tokenConsumer));
+    }
+
+    private List<Integer> processTokens(List<Integer> inputTokens, int maxOutputLength, IntConsumer tokenConsumer)
+    {
+        // The tokens are passed by a queue, so the consumer is called by the current thread (a slow consumer
+        // doesn't stop the other translations of the batch)
+        BlockingQueue<Integer> tokens = new LinkedBlockingQueue<>();
+
+        CompletableFuture<List<Integer>> result = submit(inputTokens, maxOutputLength, tokens::add);
+        result.whenComplete((value, exception) -> tokens.add(END));
+
+        try
+        {
+            for (int token = tokens.take(); token != END; token = tokens.take())
+            {
+                tokenConsumer.accept(token);
+            }
+
+            return result.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            result.cancel(false);
+            throw new RuntimeException("The translation is interrupted.");
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+        catch (RuntimeException | Error e)
+        {
+            // The consumer failed (for example the client closed the connection), the translation isn't needed anymore
+            result.cancel(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Number of the translations waiting to join the batch
+     */
+    public int getWaitingCount()
+    {
+        return waiting.size();
+    }
+
+    /**
+     * Stop the scheduler thread (the unfinished translations are completed with an exception)
+     */
+    @Override
+    public void close()
+    {
+        isRunning = false;
+
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run()
+    {
+        List<BatchTranslation> active = new ArrayList<>();
+        Throwable failure = null;
+
+        try
+        {
+            while (isRunning)
+            {
+                // Without active translations wait for a new one (but check the running flag regularly)
+                if (active.isEmpty())
+                {
+                    BatchTranslation translation = waiting.poll(100, TimeUnit.MILLISECONDS);
+                    if (translation != null) start(translation, active);
+                }
+
+                // The waiting translations join the batch (up to the maximum batch size)
+                while (active.size() < maxBatchSize)
+                {
+                    BatchTranslation translation = waiting.poll();
+                    if (translation == null) break;
+
+                    start(translation, active);
+                }
+
+                if ( ! active.isEmpty()) step(active);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException | Error e)
+        {
+            failure = e;
+            throw e;
+        }
+        finally
+        {
+            // The thread exits, so the later submits have to be rejected and the unfinished translations cancelled
+            isRunning = false;
+
+            RuntimeException exception = new RuntimeException("The batch scheduler is closed.", failure);
+
+            for (BatchTranslation translation : active)
+            {
+                finish(translation.session);
+                translation.result.completeExceptionally(exception);
+            }
+
+            for (BatchTranslation translation = waiting.poll(); translation != null; translation = waiting.poll())
+            {
+                translation.result.completeExceptionally(exception);
+            }
+        }
+    }
+
+    /**
+     * Release the session of a cancelled translation (a failure here must not stop the cancellation of the others)
+     */
+    private void finish(TranslationSession session)
+    {
+        try
+        {
+            transformer.finishTranslation(session);
+        }
+        catch (RuntimeException | Error e)
+        {
+            // The session is dropped
+        }
+    }
+
+    private void start(BatchTranslation translation, List<BatchTranslation> active)
+    {
+        Metrics.record(Metrics.Stage.QUEUE_WAIT, translation.startTime);
+
+        // Cancelled while waiting
+        if (translation.result.isDone()) return;
+
+        try
+        {
+            // Process the input by the encoders
+            translation.session = transformer.startTranslation(translation.inputTokens);
+            translation.token = transformer.getFirstDecoderToken();
+
+            active.add(translation);
+        }
+        catch (RuntimeException | Error e)
+        {
+            translation.result.completeExceptionally(e);
+        }
+    }
+
+    private void step(List<BatchTranslation> active)
+    {
+        // The cancelled translations leave the batch
+        for (Iterator<BatchTranslation> iterator = active.iterator(); iterator.hasNext(); )
+        {
+            BatchTranslation translation = iterator.next();
+            if (translation.result.isDone())
+            {
+                transformer.finishTranslation(translation.session);
+                iterator.remove();
+            }
+        }
+
+        int count = active.size();
+        if (count == 0) return;
+
+        TranslationSession[] sessions = new TranslationSession[count];
+        int[] positions = new int[count];
+        int[] tokens = new int[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            BatchTranslation translation = active.get(i);
+            sessions[i] = translation.session;
+            positions[i] = translation.position;
+            tokens[i] = translation.token;
+        }
+
+        int[] nextTokens;
+        try
+        {
+            nextTokens = transformer.executeDecoderStack(sessions, positions, tokens);
+        }
+        catch (RuntimeException | Error e)
+        {
+            // The state of the sessions is undefined, so all translations of the batch fail
+            // (an Error is handled the same way, otherwise the futures of the batch would never complete)
+            for (BatchTranslation translation : active)
+            {
+                finish(translation.session);
+                translation.result.completeExceptionally(e);
+            }
+
+            active.clear();
+            return;
+        }
+
+        Settings settings = transformer.getSettings();
+
+        Iterator<BatchTranslation> iterator = active.iterator();
+        for (int i = 0; i < count; i++)
+        {
+            BatchTranslation translation = iterator.next();
+
+            translation.token = nextTokens[i];
+            translation.position++;
+            translation.outputTokens.add(nextTokens[i]);
+
+            try
+            {
+                translation.tokenConsumer.accept(nextTokens[i]);
+            }
+            catch (RuntimeException e)
+            {
+                transformer.finishTranslation(translation.session);
+                translation.result.completeExceptionally(e);
+                iterator.remove();
+                continue;
+            }
+
+            // Time to the first token (from the submit), then the time between the tokens
+            boolean isFirst = translation.position == 1;
+            Metrics.record(isFirst ? Metrics.Stage.TIME_TO_FIRST_TOKEN : Metrics.Stage.TOKEN_LATENCY,
+                    isFirst ? translation.startTime : translation.lastTokenTime);
+            translation.lastTokenTime = Metrics.start();
+
+            // Leave the batch at the END_OF_TEXT token (or at the maximum output length)
+            if (nextTokens[i] == settings.getEndOfTextToken() || translation.position == translation.maxOutputLength)
+            {
+                transformer.finishTranslation(translation.session);
+                Metrics.recordTranslation(translation.startTime, translation.inputTokens.size(), translation.outputTokens.size());
+                translation.result.complete(translation.outputTokens);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * State of a translation processed by the scheduler
+     */
+    private static class BatchTranslation
+    {
+        private final List<Integer> inputTokens;
+        private final int maxOutputLength;
+        private final IntConsumer tokenConsumer;
+        private final List<Integer> outputTokens = new ArrayList<>();
+        private final CompletableFuture<List<Integer>> result = new CompletableFuture<>();
+
+        // Time of the submit and of the last generated token (for the metrics)
+        private final long startTime = Metrics.start();
+        private long lastTokenTime;
+
+        private TranslationSession session;
+        private int position;
+        private int token;
+
+        private BatchTranslation(List<Integer> inputTokens, int maxOutputLength, IntConsumer tokenConsumer)
+        {
+            this.inputTokens = inputTokens;
+            this.maxOutputLength = maxOutputLength;
+            this.tokenConsumer = tokenConsumer;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package ai.demo.translator;
+
+import java.util.ArrayList;
+import java.util.List;
+import static ai.demo.translator.TransformerUtil.*;
+
+/**
+ * Beam search decoding: the [beamSize] most probable partial translations (beams) are continued in every step,
+ * and the finished translation with the highest length normalized score is selected
+ * The score of a beam is the sum of the log probabilities of its tokens, normalized by length ^ lengthPenalty
+ * All beams are processed together in a single batched step of the decoder stack, and the beams share the stored
+ * keys and values: the cross-attention caches completely, the self attention caches for the common prefix
+ * (a continued beam reuses the session of its parent, the other continuations get a copy-on-write fork of it)
+ */
+public class BeamSearch
+{
+    private final Transformer transformer;
+    private final int beamSize;
+    private final float lengthPenalty;
+
+    public BeamSearch(Transformer transformer, int beamSize, float lengthPenalty)
+    {
+        this.transformer = transformer;
+        this.beamSize = beamSize;
+        this.lengthPenalty = lengthPenalty;
+    }
+
+    /**
+     * Translate the input tokens, returning the generated tokens of the best translation
+     */
+    public List<Integer> processTokens(List<Integer> inputTokens)
+    {
+        return processTokens(inputTokens, transformer.getSettings().getMaxOutputLength());
+    }
+
+    /**
+     * Translate the input tokens, generating at most maxOutputLength tokens
+     */
+    public List<Integer> processTokens(List<Integer> inputTokens, int maxOutputLength)
+    {
+        Settings settings = transformer.getSettings();
+
+        List<Beam> beams = new ArrayList<>();
+        List<Beam> finished = new ArrayList<>();
+
+        beams.add(new Beam(transformer.startTranslation(inputTokens), new ArrayList<>(), 0, transformer.getFirstDecoderToken()));
+
+        try
+        {
+            float[] logProbabilities = new float[settings.getTokenCount()];
+
+            for (int pos = 0; pos < maxOutputLength && ! beams.isEmpty(); pos++)
+            {
+                // Process the last token of all beams together
+                int count = beams.size();
+                TranslationSession[] sessions = new TranslationSession[count];
+                int[] positions = new int[count];
+                int[] tokens = new int[count];
+
+                for (int i = 0; i < count; i++)
+                {
+                    sessions[i] = beams.get(i).session;
+                    positions[i] = pos;
+                    tokens[i] = beams.get(i).token;
+                }
+
+                FloatTensor logits = transformer.calculateLogits(sessions, positions, tokens);
+
+                // The best [beamSize] continuations of all beams are the candidates of the next beams
+                List<IndexedValue> candidates = new ArrayList<>();
+                for (int i = 0; i < count; i++)
+                {
+                    logSoftmax(logits.getData(), logits.rowOffset(i), logits.getCols(), logProbabilities);
+
+                    for (IndexedValue candidate : findBest(logProbabilities, beamSize))
+                    {
+                        // The index encodes the beam and the token
+                        candidates.add(new IndexedValue(beams.get(i).score + candidate.value,
+                                i * settings.getTokenCount() + candidate.index));
+                    }
+                }
+
+                beams = selectBeams(beams, candidates, finished);
+
+                if (isDone(beams, finished)) break;
+            }
+        }
+        finally
+        {
+            for (Beam beam : beams)
+            {
+                transformer.finishTranslation(beam.session);
+            }
+        }
+
+        // The best finished translation (or the best unfinished, if the maximum output length is reached)
+        List<Beam> results = finished.isEmpty() ? beams : finished;
+
+        Beam best = null;
+        for (Beam beam : results)
+        {
+            if (best == null || normalizedScore(beam) > normalizedScore(best)) best = beam;
+        }
+
+        return best == null ? new ArrayList<>() : best.tokens;
+    }
+
+    private List<Beam> selectBeams(List<Beam> beams, List<IndexedValue> candidates, List<Beam> finished)
+    {
+        Settings settings = transformer.getSettings();
+
+        candidates.sort((a, b) -> Float.compare(b.value, a.value));
+
+        List<Beam> nextBeams = new ArrayList<>(beamSize);
+        boolean[] isContinued = new boolean[beams.size()];
+
+        for (int rank = 0; rank < candidates.size() && nextBeams.size() < beamSize; rank++)
+        {
+            IndexedValue candidate = candidates.get(rank);
+            int beamIndex = candidate.index / settings.getTokenCount();
+            int token = candidate.index % settings.getTokenCount();
+
+            Beam parent = beams.get(beamIndex);
+
+            List<Integer> tokens = new ArrayList<>(parent.tokens);
+            tokens.add(token);
+
+            if (token == settings.getEndOfTextToken())
+            {
+                // A finished translation is kept only if it is among the best [beamSize] candidates
+                if (rank < beamSize) finished.add(new Beam(null, tokens, candidate.value, token));
+                continue;
+            }
+
+            // The first continuation of a beam uses the session of the beam, the others get a fork of it
+            TranslationSession session = isContinued[beamIndex] ? transformer.forkTranslation(parent.session) : parent.session;
+            isContinued[beamIndex] = true;
+
+            nextBeams.add(new Beam(session, tokens, candidate.value, token));
+        }
+
+        // Release the sessions of the not continued beams
+        for (int i = 0; i < beams.size(); i++)
+        {
+            if ( ! isContinued[i]) transformer.finishTranslation(beams.get(i).session);
+        }
+
+        return nextBeams;
+    }
+
+    private boolean isDone(List<Beam> beams, List<Beam> finished)
+    {
+        if (beams.isEmpty()) return true;
+        if (finished.size() < beamSize) return false;
+
+        // Stop if the best active beam (with its actual score) can't be better than the worst of the best finished ones
+        List<Float> finishedScores = new ArrayList<>();
+        for (Beam beam : finished)
+        {
+            finishedScores.add(normalizedScore(beam));
+        }
+        finishedScores.sort((a, b) -> Float.compare(b, a));
+
+        return normalizedScore(beams.get(0)) <= finishedScores.get(beamSize - 1);
+    }
+
+    private float normalizedScore(Beam beam)
+    {
+        return beam.score / (float) Math.pow(beam.tokens.size(), lengthPenalty);
+    }
+
+    /**
+     * A partial translation: the generated tokens with the sum of their log probabilities
+     */
+    private static class Beam
+    {
+        private final TranslationSession session;
+        private final List<Integer> tokens;
+        private final float score;
+        private final int token;
+
+        private Beam(TranslationSession session, List<Integer> tokens, float score, int token)
+        {
+            this.session = session;
+            this.tokens = tokens;
+            this.score = score;
+            this.token = token;
+        }
+    }
+}
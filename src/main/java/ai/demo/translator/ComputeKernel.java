@@ -0,0 +1,98 @@
+package ai.demo.translator;
+
+/**
+ * Low level vector operations used by the matrix and vector utilities
+ * The scalar implementation works on every Java version, the SIMD implementation (using the Vector API)
+ * is available only on Java 17+ if the jdk.incubator.vector module is added (--add-modules jdk.incubator.vector)
+ */
+public interface ComputeKernel
+{
+    /**
+     * Dot product of two vector segments
+     */
+    float dotProduct(float[] vector1, int offset1, float[] vector2, int offset2, int length);
+
+    /**
+     * Add a vector segment multiplied by a scalar to the target vector segment: target += scalar * vector
+     */
+    void addScaled(float scalar, float[] vector, int offset, float[] target, int targetOffset, int length);
+
+    /**
+     * Dot product of a float vector segment and an int8 vector segment
+     */
+    float dotProduct(float[] vector, int offset, byte[] values, int valuesOffset, int length);
+
+    /**
+     * Add an int8 vector segment multiplied by a scalar to the target vector segment: target += scalar * values
+     */
+    void addScaled(float scalar, byte[] values, int offset, float[] target, int targetOffset, int length);
+
+    /**
+     * Dot product of a float vector segment and a float16 vector segment
+     */
+    float dotProductFloat16(float[] vector, int offset, short[] values, int valuesOffset, int length);
+
+    /**
+     * Add a float16 vector segment multiplied by a scalar to the target vector segment: target += scalar * values
+     */
+    void addScaledFloat16(float scalar, short[] values, int offset, float[] target, int targetOffset, int length);
+
+    /**
+     * Dot product of a float vector segment and a bfloat16 vector segment
+     */
+    float dotProductBFloat16(float[] vector, int offset, short[] values, int valuesOffset, int length);
+
+    /**
+     * Add a bfloat16 vector segment multiplied by a scalar to the target vector segment: target += scalar * values
+     */
+    void addScaledBFloat16(float scalar, short[] values, int offset, float[] target, int targetOffset, int length);
+
+    /**
+     * Multiply a block of rows by a block of a matrix, adding the result to the target block:
+     * target[row][col] += sum(input[row][i] * matrix[i][col]) for all rows (rowCount), cols (length) and i (inner)
+     * The rows of the blocks are given by the offset of the first element and the stride (distance between the rows)
+     */
+    void multiplyBlock(float[] input, int inputOffset, int inputStride, int rowCount, int inner,
+                       float[] matrix, int matrixOffset, int matrixStride,
+                       float[] target, int targetOffset, int targetStride, int length);
+
+    /**
+     * Vector to vector addition into the result vector (which can be the same as one of the inputs)
+     */
+    void addVectors(float[] vector1, float[] vector2, float[] result, int length);
+
+    /**
+     * Calculate exp(vector[i] - max) into the result vector (which can be the same as the input), returning the sum
+     * of the results (using the approximation of Util.fastExp, the implementations give the same exp values, but the
+     * sum may differ by rounding, because the order of the additions is implementation specific)
+     */
+    float expAndSum(float[] vector, float max, float[] result, int length);
+
+    /**
+     * Name of the implementation
+     */
+    String getName();
+
+    /**
+     * Select the fastest available implementation
+     * (The scalar version can be forced by the -Dtranslator.kernel=scalar system property)
+     */
+    static ComputeKernel create()
+    {
+        if ( ! "scalar".equalsIgnoreCase(System.getProperty("translator.kernel")))
+        {
+            try
+            {
+                // This class is present only in the Java 17+ part of the multi-release jar
+                Class<?> simdClass = Class.forName("ai.demo.translator.SimdComputeKernel");
+                return (ComputeKernel) simdClass.getDeclaredConstructor().newInstance();
+            }
+            catch (Exception | LinkageError e)
+            {
+                // The Vector API isn't available, falling back to the scalar implementation
+            }
+        }
+
+        return new ScalarComputeKernel();
+    }
+}
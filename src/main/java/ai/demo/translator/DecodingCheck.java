@@ -0,0 +1,183 @@
+package ai.demo.translator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Check of the decoding implementations which should give the same result as the greedy decoding
+ * (Transformer.processTokens without beam search and speculative decoding): the batched decoding of the BatchScheduler,
+ * the speculative decoding and the beam search with a single beam
+ * Random inputs are translated by every implementation, and the outputs are compared to the greedy ones token by token
+ * (for example on a model generated by the SyntheticModel)
+ * Usage: DecodingCheck <path-of-the-parameters> [count=20] [input.length=16] [draft.size=4] [key=value ...]
+ * The exit code is 1 if any output is different
+ */
+public class DecodingCheck
+{
+    public static void main(String... args) throws Exception
+    {
+        PrintStream out = new PrintStream(System.out, true, "utf-8");
+
+        // The warnings of the settings are printed to the App.OUT
+        App.OUT = out;
+
+        if (args == null || args.length < 1)
+        {
+            out.println("Usage: DecodingCheck <path-of-the-parameters> [count=20] [input.length=16] [draft.size=4] [key=value ...]");
+            return;
+        }
+
+        String path = args[0];
+
+        // The parameters of the check, the remaining ones override the settings
+        Map<String, String> overrides = App.readOverrides(args);
+        int count = Integer.parseInt(overrides.containsKey("count") ? overrides.remove("count") : "20");
+        int maxInputLength = Integer.parseInt(overrides.containsKey("input.length") ? overrides.remove("input.length") : "16");
+        int draftSize = Integer.parseInt(overrides.containsKey("draft.size") ? overrides.remove("draft.size") : "4");
+
+        if (draftSize < 1)
+        {
+            throw new RuntimeException("The draft size should be at least 1 (" + draftSize + ")");
+        }
+
+        // The reference is the greedy decoding
+        overrides.put("beam.size", "1");
+        overrides.put("speculative.draft.size", "0");
+
+        // The decoder steps are counted to show whether the speculative decoding accepted any draft
+        overrides.put("metrics.enabled", "true");
+        Settings settings = new Settings(path, overrides);
+
+        out.println("Loading the model...");
+        Transformer transformer = new Transformer(settings, new Tokenizer(path));
+
+        List<List<Integer>> inputs = createInputs(settings, count, maxInputLength);
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> input : inputs)
+        {
+            expected.add(transformer.processTokens(input));
+        }
+
+        boolean isMatching = compare(out, "Batched decoding", inputs, expected, processBatched(transformer, inputs));
+
+        // The draft is accepted only if the output repeats a part of the source or of itself
+        // (on a synthetic model it happens mostly in long outputs, so a max.output.length near the context size is better)
+        SpeculativeDecoding speculativeDecoding = new SpeculativeDecoding(transformer, draftSize);
+        Metrics.getInstance().reset();
+        List<List<Integer>> speculative = process(inputs, speculativeDecoding::processTokens);
+        long stepCount = Metrics.getInstance().getHistogram(Metrics.Stage.DECODER_STEP).getCount();
+
+        isMatching &= compare(out, "Speculative decoding (draft size " + draftSize + ")", inputs, expected, speculative);
+        out.println("    decoder steps: " + stepCount + ", output tokens: " + getTokenCount(speculative));
+
+        // A single beam continues with the most probable token in every step
+        BeamSearch beamSearch = new BeamSearch(transformer, 1, settings.getLengthPenalty());
+        isMatching &= compare(out, "Beam search (beam size 1)", inputs, expected, process(inputs, beamSearch::processTokens));
+
+        if ( ! isMatching) System.exit(1);
+    }
+
+    private static List<List<Integer>> process(List<List<Integer>> inputs, Function<List<Integer>, List<Integer>> translation)
+    {
+        List<List<Integer>> ret = new ArrayList<>();
+        for (List<Integer> input : inputs)
+        {
+            ret.add(translation.apply(input));
+        }
+
+        return ret;
+    }
+
+    private static long getTokenCount(List<List<Integer>> outputs)
+    {
+        long ret = 0;
+        for (List<Integer> output : outputs)
+        {
+            ret += output.size();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Submit all inputs to a scheduler at once (with a batch size smaller than the count, so the translations join
+     * the batch at different steps)
+     */
+    private static List<List<Integer>> processBatched(Transformer transformer, List<List<Integer>> inputs)
+    {
+        try (BatchScheduler scheduler = new BatchScheduler(transformer, Math.max(1, inputs.size() / 2)))
+        {
+            List<CompletableFuture<List<Integer>>> futures = new ArrayList<>();
+            for (List<Integer> input : inputs)
+            {
+                futures.add(scheduler.submit(input));
+            }
+
+            List<List<Integer>> ret = new ArrayList<>();
+            for (CompletableFuture<List<Integer>> future : futures)
+            {
+                ret.add(future.join());
+            }
+
+            return ret;
+        }
+    }
+
+    private static boolean compare(PrintStream out, String name, List<List<Integer>> inputs,
+                                   List<List<Integer>> expected, List<List<Integer>> actual)
+    {
+        int differentCount = 0;
+
+        for (int i = 0; i < inputs.size(); i++)
+        {
+            if ( ! expected.get(i).equals(actual.get(i)))
+            {
+                differentCount++;
+
+                out.println("\nInput:    " + inputs.get(i));
+                out.println("Greedy:   " + expected.get(i));
+                out.println("Result:   " + actual.get(i));
+            }
+        }
+
+        out.println(name + ": " + (differentCount == 0 ? "OK" : "DIFFERENT (" + differentCount + " / " + inputs.size() + ")"));
+
+        return differentCount == 0;
+    }
+
+    /**
+     * Random tokens with random lengths (without the START-OF-TEXT and END-OF-TEXT tokens)
+     */
+    private static List<List<Integer>> createInputs(Settings settings, int count, int maxInputLength)
+    {
+        if (maxInputLength < 1 || maxInputLength + 2 > settings.getContextSize())
+        {
+            throw new RuntimeException("The input length should be between 1 and " + (settings.getContextSize() - 2) + " (" + maxInputLength + ")");
+        }
+
+        Random random = new Random(1);
+        List<List<Integer>> ret = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++)
+        {
+            int length = 1 + random.nextInt(maxInputLength);
+
+            List<Integer> tokens = new ArrayList<>(length);
+            while (tokens.size() < length)
+            {
+                int token = random.nextInt(settings.getTokenCount());
+                if (token != settings.getStartOfTextToken() && token != settings.getEndOfTextToken()) tokens.add(token);
+            }
+
+            ret.add(tokens);
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,194 @@
+package ai.demo.translator;
+
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Translation of documents (longer than the context size of the transformer)
+ * The document is split into sentences, which are translated in parallel by a worker pool, and the results are
+ * reassembled in the original order (keeping the whitespace and line breaks between the sentences)
+ * Shorter sequences are also faster to translate: the cost of the attention grows quadratically with the length
+ */
+public class DocumentTranslator implements AutoCloseable
+{
+    private final Transformer transformer;
+    private final Tokenizer tokenizer;
+    private final ExecutorService executor;
+
+    /**
+     * Initialization (it starts the worker threads)
+     */
+    public DocumentTranslator(Transformer transformer, Tokenizer tokenizer, int threadCount)
+    {
+        if (threadCount < 1)
+        {
+            throw new RuntimeException("The thread count should be at least 1 (" + threadCount + ")");
+        }
+
+        this.transformer = transformer;
+        this.tokenizer = tokenizer;
+
+        this.executor = Executors.newFixedThreadPool(threadCount, runnable ->
+        {
+            Thread thread = new Thread(runnable, "translator-document-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Translate a document, returning the whole translation
+     */
+    public String translate(String document)
+    {
+        StringBuilder result = new StringBuilder();
+        translate(document, result::append);
+
+        return result.toString();
+    }
+
+    /**
+     * Translate a document, passing the translated sentences (with the following whitespace) to the consumer
+     * in the original order: a sentence is passed as soon as it and all of its predecessors are finished
+     */
+    public void translate(String document, Consumer<String> consumer)
+    {
+        List<Segment> segments = splitSentences(document);
+
+        // Start the translation of all sentences
+        List<Future<String>> results = new ArrayList<>(segments.size());
+        for (Segment segment : segments)
+        {
+            results.add(segment.text.isEmpty() ? null : executor.submit(() -> translateSentence(segment.text)));
+        }
+
+        try
+        {
+            for (int i = 0; i < segments.size(); i++)
+            {
+                Future<String> result = results.get(i);
+                String translation = result == null ? "" : result.get();
+
+                consumer.accept(translation + segments.get(i).separator);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("The document translation is interrupted.");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException("Document translation failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        finally
+        {
+            // Stop the remaining sentences if the translation failed
+            for (Future<String> result : results)
+            {
+                if (result != null) result.cancel(false);
+            }
+        }
+    }
+
+    private String translateSentence(String sentence)
+    {
+        Settings settings = transformer.getSettings();
+
+        // The input is wrapped between a START-OF-TEXT and an END-OF-TEXT token, so 2 positions are reserved
+        int maxInputSize = settings.getContextSize() - 2;
+
+        List<Integer> tokens = tokenizer.encode(sentence);
+
+        StringBuilder result = new StringBuilder();
+
+        // A too long sentence (without a sentence boundary) is translated in parts
+        for (int start = 0; start < tokens.size(); start += maxInputSize)
+        {
+            List<Integer> outputTokens = transformer.processTokens(tokens.subList(start, Math.min(tokens.size(), start + maxInputSize)));
+
+            // Remove the special tokens
+            List<Integer> textTokens = new ArrayList<>(outputTokens.size());
+            for (int token : outputTokens)
+            {
+                if (token != settings.getStartOfTextToken() && token != settings.getEndOfTextToken()) textTokens.add(token);
+            }
+
+            if (result.length() > 0) result.append(' ');
+            result.append(tokenizer.decode(textTokens).trim());
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Split the text into sentences (and line breaks), every segment contains a sentence and the whitespace after it
+     */
+    static List<Segment> splitSentences(String text)
+    {
+        List<Segment> segments = new ArrayList<>();
+
+        // The line breaks are always sentence boundaries (the BreakIterator continues the sentences after a single one)
+        for (int lineStart = 0; lineStart < text.length(); )
+        {
+            int lineEnd = text.indexOf('\n', lineStart);
+            lineEnd = lineEnd < 0 ? text.length() : lineEnd + 1;
+
+            splitLine(text.substring(lineStart, lineEnd), segments);
+            lineStart = lineEnd;
+        }
+
+        return segments;
+    }
+
+    private static void splitLine(String line, List<Segment> segments)
+    {
+        BreakIterator iterator = BreakIterator.getSentenceInstance(Locale.ROOT);
+        iterator.setText(line);
+
+        int start = iterator.first();
+        for (int end = iterator.next(); end != BreakIterator.DONE; start = end, end = iterator.next())
+        {
+            // The whitespace at the end of the sentence is kept as separator (not translated)
+            int textEnd = end;
+            while (textEnd > start && Character.isWhitespace(line.charAt(textEnd - 1))) textEnd--;
+
+            // The whitespace at the start (possible only at the beginning of the line) is a separate segment
+            int textStart = start;
+            while (textStart < textEnd && Character.isWhitespace(line.charAt(textStart))) textStart++;
+
+            if (textStart > start) segments.add(new Segment("", line.substring(start, textStart)));
+
+            segments.add(new Segment(line.substring(textStart, textEnd), line.substring(textEnd, end)));
+        }
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    @Override
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A sentence with the following whitespace
+     */
+    static class Segment
+    {
+        final String text;
+        final String separator;
+
+        Segment(String text, String separator)
+        {
+            this.text = text;
+            this.separator = separator;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package ai.demo.translator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Batch translation of text files (one output line for every input line)
+ * Usage: FileTranslator <path-of-the-parameters> <input-file> [<input-file> ...] <output-file> [key=value ...]
+ * The lines are processed by a pipeline: reader, tokenizer (encode), translation workers, tokenizer (decode) and
+ * writer stages, running on separate threads and connected by bounded queues. The writer restores the original
+ * order of the lines (the number of lines under processing is limited, so the reordering needs limited memory)
+ * The number of translation workers is the batch.worker.count setting, their greedy translations are decoded
+ * together by a BatchScheduler (up to max.batch.size)
+ */
+public class FileTranslator
+{
+    // Capacity of the queues between the stages
+    private static final int QUEUE_SIZE = 256;
+
+    // Maximum number of lines under processing (read, but not written yet)
+    private static final int WINDOW_SIZE = 4 * QUEUE_SIZE;
+
+    // Marker of the end of the input (passed through all stages)
+    private static final Line END = new Line(-1, null);
+
+    private final Transformer transformer;
+    private final Tokenizer tokenizer;
+    private final int workerCount;
+
+    private final Semaphore window = new Semaphore(WINDOW_SIZE);
+
+    private final AtomicLong inputTokenCount = new AtomicLong();
+    private final AtomicLong outputTokenCount = new AtomicLong();
+    private final AtomicInteger failureCount = new AtomicInteger();
+
+    private volatile Exception error;
+
+    public static void main(String... args) throws Exception
+    {
+        App.OUT = new PrintStream(System.out, true, "utf-8");
+
+        // The key=value parameters override the settings, the others are the files
+        List<String> files = new ArrayList<>();
+        Map<String, String> overrides = new HashMap<>();
+
+        for (int i = 1; args != null && i < args.length; i++)
+        {
+            if (isFile(args[i]) || ! App.addOverride(overrides, args[i])) files.add(args[i]);
+        }
+
+        if (files.size() < 2)
+        {
+            App.OUT.println("Usage: FileTranslator <path-of-the-parameters> <input-file> [<input-file> ...] <output-file> [key=value ...]");
+            return;
+        }
+
+        try
+        {
+            String path = args[0];
+            Settings settings = new Settings(path, overrides);
+
+            App.OUT.print("Loading trained parameters... ");
+            Tokenizer tokenizer = new Tokenizer(path);
+            Transformer transformer = new Transformer(settings, tokenizer);
+            App.OUT.println("Done.");
+
+            FileTranslator translator = new FileTranslator(transformer, tokenizer, settings.getBatchWorkerCount());
+            translator.translate(files.subList(0, files.size() - 1), files.get(files.size() - 1));
+        }
+        catch (Exception e)
+        {
+            App.OUT.println("\nERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * An existing file, or a path with a directory before the first '=' (it can't be a key=value parameter)
+     */
+    private static boolean isFile(String arg)
+    {
+        int index = arg.indexOf('=');
+        String key = index < 0 ? arg : arg.substring(0, index);
+
+        return new File(arg).exists() || key.indexOf('/') >= 0 || key.indexOf(File.separatorChar) >= 0;
+    }
+
+    public FileTranslator(Transformer transformer, Tokenizer tokenizer, int workerCount)
+    {
+        if (workerCount < 1)
+        {
+            throw new RuntimeException("The worker count should be at least 1 (" + workerCount + ")");
+        }
+
+        this.transformer = transformer;
+        this.tokenizer = tokenizer;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Translate the lines of the input files (in the given order) into the output file, and print the statistics
+     */
+    public void translate(List<String> inputFiles, String outputFile) throws Exception
+    {
+        BlockingQueue<Line> lines = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        BlockingQueue<Line> encoded = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        BlockingQueue<Line> translated = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        BlockingQueue<Line> decoded = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        long start = System.nanoTime();
+
+        BatchScheduler scheduler = BatchScheduler.create(transformer);
+
+        int lineCount;
+        try
+        {
+            List<Thread> threads = new ArrayList<>();
+            threads.add(startThread("reader", () -> read(inputFiles, lines)));
+            threads.addAll(startStage("encoder", 1, lines, encoded, this::encode));
+            threads.addAll(startStage("worker", workerCount, encoded, translated, line -> translate(line, scheduler)));
+            threads.addAll(startStage("decoder", 1, translated, decoded, this::decode));
+
+            lineCount = write(decoded, outputFile);
+
+            for (Thread thread : threads)
+            {
+                thread.join();
+            }
+        }
+        finally
+        {
+            if (scheduler != null) scheduler.close();
+        }
+
+        if (error != null) throw error;
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        App.OUT.println("Lines: " + lineCount + (failureCount.get() > 0 ? " (failed: " + failureCount.get() + ")" : ""));
+        App.OUT.println("Input tokens: " + inputTokenCount.get() + ", output tokens: " + outputTokenCount.get());
+        App.OUT.printf(Locale.ROOT, "Time: %.1f s, %.1f lines/s, %.1f tokens/s (output)%n",
+                seconds, lineCount / seconds, outputTokenCount.get() / seconds);
+    }
+
+    private void read(List<String> inputFiles, BlockingQueue<Line> output) throws Exception
+    {
+        try
+        {
+            int index = 0;
+
+            for (String inputFile : inputFiles)
+            {
+                try (BufferedReader reader = Files.newBufferedReader(Paths.get(inputFile), StandardCharsets.UTF_8))
+                {
+                    for (String text = reader.readLine(); text != null && error == null; text = reader.readLine())
+                    {
+                        // Wait if too many lines are under processing
+                        window.acquire();
+                        output.put(new Line(index++, text));
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new Exception("Cannot read the input file: " + inputFile + " (" + e.getMessage() + ")");
+                }
+            }
+        }
+        finally
+        {
+            output.put(END);
+        }
+    }
+
+    private void encode(Line line)
+    {
+        line.tokens = tokenizer.encode(line.text);
+        inputTokenCount.addAndGet(line.tokens.size());
+    }
+
+    private void translate(Line line, BatchScheduler scheduler)
+    {
+        if (line.tokens.isEmpty()) return;
+
+        try
+        {
+            line.tokens = scheduler != null ? scheduler.processTokens(line.tokens) : transformer.processTokens(line.tokens);
+            outputTokenCount.addAndGet(line.tokens.size());
+        }
+        catch (RuntimeException e)
+        {
+            // A failed line (for example a too long one) results an empty line
+            fail(line, "worker", e);
+        }
+    }
+
+    private void decode(Line line)
+    {
+        Settings settings = transformer.getSettings();
+
+        // Remove the special tokens (and the line breaks, every translation is a single line)
+        List<Integer> textTokens = new ArrayList<>(line.tokens.size());
+        for (int token : line.tokens)
+        {
+            if (token != settings.getStartOfTextToken() && token != settings.getEndOfTextToken()) textTokens.add(token);
+        }
+
+        line.text = line.tokens.isEmpty() ? "" : tokenizer.decode(textTokens).replace('\r', ' ').replace('\n', ' ').trim();
+        line.tokens = null;
+    }
+
+    /**
+     * Mark the line as failed: it results an empty line (not the source text), and the processing continues
+     */
+    private void fail(Line line, String stage, RuntimeException e)
+    {
+        App.OUT.println("WARNING: Line " + (line.index + 1) + " failed at the " + stage + " stage: " + e.getMessage());
+        failureCount.incrementAndGet();
+
+        line.text = "";
+        line.tokens = Collections.emptyList();
+    }
+
+    /**
+     * Write the translated lines in the original order, returning the number of the lines
+     */
+    private int write(BlockingQueue<Line> input, String outputFile) throws Exception
+    {
+        // The lines arrived before their predecessors
+        Map<Integer, Line> waiting = new HashMap<>();
+        int next = 0;
+
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8))
+        {
+            for (Line line = input.take(); line != END; line = input.take())
+            {
+                waiting.put(line.index, line);
+
+                for (Line nextLine = waiting.remove(next); nextLine != null; nextLine = waiting.remove(next))
+                {
+                    writer.write(nextLine.text);
+                    writer.newLine();
+
+                    next++;
+                    window.release();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // Stop the reader, the other stages finish with the already read lines
+            error = new Exception("Cannot write the output file: " + outputFile + " (" + e.getMessage() + ")");
+            window.release(WINDOW_SIZE);
+            for (Line line = input.take(); line != END; line = input.take()) {}
+        }
+
+        return next;
+    }
+
+    /**
+     * Start the threads of a stage: the lines of the input queue are processed and passed to the output queue
+     */
+    private List<Thread> startStage(String name, int threadCount, BlockingQueue<Line> input, BlockingQueue<Line> output,
+                                    Consumer<Line> processor)
+    {
+        AtomicInteger runningCount = new AtomicInteger(threadCount);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < threadCount; i++)
+        {
+            threads.add(startThread(name, () ->
+            {
+                for (Line line = input.take(); line != END; line = input.take())
+                {
+                    try
+                    {
+                        processor.accept(line);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // The line is passed on (as an empty line), so the following stages don't wait for it
+                        fail(line, name, e);
+                    }
+
+                    output.put(line);
+                }
+
+                // Pass the end marker to the other threads of the stage, and (by the last one) to the next stage
+                if (runningCount.decrementAndGet() > 0) input.put(END);
+                else output.put(END);
+            }));
+        }
+
+        return threads;
+    }
+
+    private Thread startThread(String name, Task task)
+    {
+        Thread thread = new Thread(() ->
+        {
+            try
+            {
+                task.run();
+            }
+            catch (Exception e)
+            {
+                if (error == null) error = e;
+            }
+        }, "translator-file-" + name);
+
+        thread.setDaemon(true);
+        thread.start();
+
+        return thread;
+    }
+
+    private interface Task
+    {
+        void run() throws Exception;
+    }
+
+    /**
+     * A line under processing (the text is replaced by the tokens, then by the translated text)
+     */
+    private static class Line
+    {
+        private final int index;
+        private String text;
+        private List<Integer> tokens;
+
+        private Line(int index, String text)
+        {
+            this.index = index;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package ai.demo.translator;
+
+import static ai.demo.translator.Util.KERNEL;
+
+/**
+ * Tensor of 16-bit floating point values, using half the memory of the float tensor
+ * Two formats are supported:
+ *  - float16: IEEE 754 half precision (5 bit exponent, 10 bit mantissa)
+ *  - bfloat16: the upper half of the float (8 bit exponent, 7 bit mantissa)
+ * The values are converted to float inside the kernels of the matrix multiplications
+ */
+public class Float16Tensor extends Tensor
+{
+    // Conversion table from float16 to float (for all 65536 possible values)
+    private static final float[] FLOAT16_TABLE = createFloat16Table();
+
+    private final short[] data;
+    private final boolean isBFloat16;
+
+    /**
+     * Wrap an existing array of 16-bit values (without copying it)
+     */
+    public Float16Tensor(int rows, int cols, short[] data, boolean isBFloat16)
+    {
+        super(rows, cols);
+
+        if (data.length != rows * cols)
+        {
+            throw new IllegalArgumentException("The data size (" + data.length + ") doesn't match the shape (" + rows + " x " + cols + ")");
+        }
+
+        this.data = data;
+        this.isBFloat16 = isBFloat16;
+    }
+
+    /**
+     * Convert float values (in row-major order) to a 16-bit tensor
+     */
+    public static Float16Tensor convert(int rows, int cols, float[] values, boolean isBFloat16)
+    {
+        short[] data = new short[values.length];
+
+        for (int i = 0; i < values.length; i++)
+        {
+            data[i] = isBFloat16 ? floatToBFloat16(values[i]) : floatToFloat16(values[i]);
+        }
+
+        return new Float16Tensor(rows, cols, data, isBFloat16);
+    }
+
+    @Override
+    public void copyRow(int row, float[] target)
+    {
+        int offset = row * cols;
+
+        for (int i = 0; i < cols; i++)
+        {
+            target[i] = toFloat(data[offset + i]);
+        }
+    }
+
+    @Override
+    public void addRow(int row, float[] target)
+    {
+        int offset = row * cols;
+
+        for (int i = 0; i < cols; i++)
+        {
+            target[i] = target[i] + toFloat(data[offset + i]);
+        }
+    }
+
+    @Override
+    public float dotProductRow(int row, float[] vector, int offset)
+    {
+        return isBFloat16
+                ? KERNEL.dotProductBFloat16(vector, offset, data, row * cols, cols)
+                : KERNEL.dotProductFloat16(vector, offset, data, row * cols, cols);
+    }
+
+    @Override
+    public void addScaledRow(int row, int col, float scalar, float[] target, int targetOffset, int length)
+    {
+        if (isBFloat16) KERNEL.addScaledBFloat16(scalar, data, row * cols + col, target, targetOffset, length);
+        else KERNEL.addScaledFloat16(scalar, data, row * cols + col, target, targetOffset, length);
+    }
+
+    @Override
+    public void multiplyBlock(float[] input, int inputOffset, int inputStride, int rowCount,
+                              int row, int inner, int col,
+                              float[] target, int targetOffset, int targetStride, int length)
+    {
+        for (int i = 0; i < inner; i++)
+        {
+            for (int inputRow = 0; inputRow < rowCount; inputRow++)
+            {
+                float value = input[inputOffset + inputRow * inputStride + i];
+                addScaledRow(row + i, col, value, target, targetOffset + inputRow * targetStride, length);
+            }
+        }
+    }
+
+    @Override
+    public long getByteSize()
+    {
+        return (long) data.length * 2;
+    }
+
+    private float toFloat(short value)
+    {
+        return isBFloat16 ? bFloat16ToFloat(value) : float16ToFloat(value);
+    }
+
+    /**
+     * Convert float16 value to float
+     */
+    public static float float16ToFloat(short value)
+    {
+        return FLOAT16_TABLE[value & 0xffff];
+    }
+
+    /**
+     * Convert bfloat16 value to float (the bfloat16 is the upper 16 bits of the float)
+     */
+    public static float bFloat16ToFloat(short value)
+    {
+        return Float.intBitsToFloat(value << 16);
+    }
+
+    /**
+     * Convert float to bfloat16 (rounding to the nearest, ties to even)
+     */
+    public static short floatToBFloat16(float value)
+    {
+        if (Float.isNaN(value)) return (short) 0x7fc0;
+
+        int bits = Float.floatToRawIntBits(value);
+        bits = bits + 0x7fff + ((bits >>> 16) & 1);
+
+        return (short) (bits >>> 16);
+    }
+
+    /**
+     * Convert float to float16 (rounding to the nearest, ties to even)
+     */
+    public static short floatToFloat16(float value)
+    {
+        int bits = Float.floatToRawIntBits(value);
+        short sign = (short) ((bits & 0x80000000) >> 16);
+
+        if (Float.isNaN(value)) return (short) (sign | 0x7e00);
+
+        float abs = Math.abs(value);
+
+        // Too large: infinity (the largest float16 value is 65504)
+        if (abs >= 65520f) return (short) (sign | 0x7c00);
+
+        // Too small: zero (the smallest float16 value is 2^-24)
+        if (abs <= 0x1.0p-25f) return sign;
+
+        int exponent = Math.getExponent(value);
+
+        // Subnormal float16 values have a fixed exponent (-14) without the implicit leading 1 bit
+        int shift = 13;
+        int leadingBit = 0;
+        if (exponent < -14)
+        {
+            shift = 13 + (-14 - exponent);
+            exponent = -15;
+            leadingBit = 0x800000;
+        }
+
+        int mantissa = bits & 0x7fffff | leadingBit;
+        int result = mantissa >> shift;
+
+        // Rounding (based on the first dropped bit and the rest)
+        int lsb = mantissa & (1 << shift);
+        int round = mantissa & (1 << (shift - 1));
+        int sticky = mantissa & ((1 << (shift - 1)) - 1);
+        if (round != 0 && (lsb | sticky) != 0) result++;
+
+        // An overflow of the mantissa increments the exponent, which is the correct result
+        return (short) (sign | (((exponent + 15) << 10) + result));
+    }
+
+    private static float[] createFloat16Table()
+    {
+        float[] table = new float[65536];
+
+        for (int i = 0; i < 65536; i++)
+        {
+            int sign = i & 0x8000;
+            int exponent = (i & 0x7c00) >> 10;
+            int mantissa = i & 0x3ff;
+
+            float value;
+            if (exponent == 0)
+            {
+                // Zero or subnormal
+                value = mantissa * 0x1.0p-24f;
+            }
+            else if (exponent == 31)
+            {
+                // Infinity or NaN
+                value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+            }
+            else
+            {
+                value = Float.intBitsToFloat(((exponent - 15 + 127) << 23) | (mantissa << 13));
+            }
+
+            table[i] = sign == 0 ? value : -value;
+        }
+
+        return table;
+    }
+}
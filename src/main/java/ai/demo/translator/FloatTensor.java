@@ -0,0 +1,93 @@
+package ai.demo.translator;
+
+import static ai.demo.translator.Util.KERNEL;
+
+/**
+ * Tensor of float values
+ */
+public class FloatTensor extends Tensor
+{
+    private final float[] data;
+
+    /**
+     * Create a zero-filled tensor
+     */
+    public FloatTensor(int rows, int cols)
+    {
+        this(rows, cols, new float[rows * cols]);
+    }
+
+    /**
+     * Wrap an existing array (without copying it)
+     */
+    public FloatTensor(int rows, int cols, float[] data)
+    {
+        super(rows, cols);
+
+        if (data.length != rows * cols)
+        {
+            throw new IllegalArgumentException("The data size (" + data.length + ") doesn't match the shape (" + rows + " x " + cols + ")");
+        }
+
+        this.data = data;
+    }
+
+    public float get(int row, int col)
+    {
+        return data[row * cols + col];
+    }
+
+    public void set(int row, int col, float value)
+    {
+        data[row * cols + col] = value;
+    }
+
+    @Override
+    public void copyRow(int row, float[] target)
+    {
+        System.arraycopy(data, row * cols, target, 0, cols);
+    }
+
+    @Override
+    public void addRow(int row, float[] target)
+    {
+        int offset = row * cols;
+
+        for (int i = 0; i < cols; i++)
+        {
+            target[i] = target[i] + data[offset + i];
+        }
+    }
+
+    @Override
+    public float dotProductRow(int row, float[] vector, int offset)
+    {
+        return KERNEL.dotProduct(vector, offset, data, row * cols, cols);
+    }
+
+    @Override
+    public void addScaledRow(int row, int col, float scalar, float[] target, int targetOffset, int length)
+    {
+        KERNEL.addScaled(scalar, data, row * cols + col, target, targetOffset, length);
+    }
+
+    @Override
+    public void multiplyBlock(float[] input, int inputOffset, int inputStride, int rowCount,
+                              int row, int inner, int col,
+                              float[] target, int targetOffset, int targetStride, int length)
+    {
+        KERNEL.multiplyBlock(input, inputOffset, inputStride, rowCount, inner, data, row * cols + col, cols,
+                target, targetOffset, targetStride, length);
+    }
+
+    @Override
+    public long getByteSize()
+    {
+        return (long) data.length * 4;
+    }
+
+    public float[] getData()
+    {
+        return data;
+    }
+}
@@ -0,0 +1,199 @@
+package ai.demo.translator;
+
+/**
+ * Minimal JSON support for the server: reading a string field of an object, and quoting a string
+ */
+final class Json
+{
+    private Json() {}
+
+    /**
+     * Find a string field of a JSON object (null if the field is missing or not a string)
+     */
+    static String getString(String json, String name)
+    {
+        Parser parser = new Parser(json);
+
+        parser.skipWhitespace();
+        parser.expect('{');
+        parser.skipWhitespace();
+
+        String result = null;
+
+        if (parser.peek() == '}')
+        {
+            parser.position++;
+            return null;
+        }
+
+        while (true)
+        {
+            parser.skipWhitespace();
+            String key = parser.readString();
+            parser.skipWhitespace();
+            parser.expect(':');
+            parser.skipWhitespace();
+
+            if (parser.peek() == '"')
+            {
+                String value = parser.readString();
+                if (key.equals(name)) result = value;
+            }
+            else
+            {
+                parser.skipValue();
+            }
+
+            parser.skipWhitespace();
+            char c = parser.next();
+
+            if (c == '}') return result;
+            if (c != ',') throw new RuntimeException("Invalid JSON: expected ',' or '}' at position " + (parser.position - 1));
+        }
+    }
+
+    /**
+     * Convert a string to a JSON string literal
+     */
+    static String quote(String value)
+    {
+        StringBuilder result = new StringBuilder(value.length() + 2);
+        result.append('"');
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            switch (c)
+            {
+                case '"': result.append("\\\""); break;
+                case '\\': result.append("\\\\"); break;
+                case '\n': result.append("\\n"); break;
+                case '\r': result.append("\\r"); break;
+                case '\t': result.append("\\t"); break;
+                default:
+                    if (c < 0x20) result.append(String.format("\\u%04x", (int) c));
+                    else result.append(c);
+            }
+        }
+
+        return result.append('"').toString();
+    }
+
+    private static class Parser
+    {
+        private final String json;
+        private int position;
+
+        private Parser(String json)
+        {
+            this.json = json;
+        }
+
+        private char peek()
+        {
+            if (position >= json.length()) throw new RuntimeException("Invalid JSON: unexpected end");
+            return json.charAt(position);
+        }
+
+        private char next()
+        {
+            char c = peek();
+            position++;
+            return c;
+        }
+
+        private void expect(char expected)
+        {
+            if (next() != expected)
+            {
+                throw new RuntimeException("Invalid JSON: expected '" + expected + "' at position " + (position - 1));
+            }
+        }
+
+        private void skipWhitespace()
+        {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) position++;
+        }
+
+        private String readString()
+        {
+            expect('"');
+
+            StringBuilder result = new StringBuilder();
+            while (true)
+            {
+                char c = next();
+
+                if (c == '"') return result.toString();
+
+                if (c != '\\')
+                {
+                    result.append(c);
+                    continue;
+                }
+
+                char escaped = next();
+                switch (escaped)
+                {
+                    case 'b': result.append('\b'); break;
+                    case 'f': result.append('\f'); break;
+                    case 'n': result.append('\n'); break;
+                    case 'r': result.append('\r'); break;
+                    case 't': result.append('\t'); break;
+                    case 'u':
+                        if (position + 4 > json.length()) throw new RuntimeException("Invalid JSON: unexpected end");
+
+                        // Exactly 4 hex digits (Integer.parseInt would accept a sign or non-ASCII digits as well)
+                        int value = 0;
+                        for (int i = 0; i < 4; i++)
+                        {
+                            int digit = hexDigit(json.charAt(position + i));
+                            if (digit < 0) throw new RuntimeException("Invalid JSON: invalid unicode escape at position " + position);
+
+                            value = value * 16 + digit;
+                        }
+
+                        result.append((char) value);
+                        position += 4;
+                        break;
+                    default: result.append(escaped);
+                }
+            }
+        }
+
+        private static int hexDigit(char c)
+        {
+            if (c >= '0' && c <= '9') return c - '0';
+            if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+            if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+            return -1;
+        }
+
+        /**
+         * Skip a non-string value (number, literal, array or object)
+         */
+        private void skipValue()
+        {
+            int depth = 0;
+
+            while (true)
+            {
+                char c = peek();
+
+                if (c == '"')
+                {
+                    readString();
+                    continue;
+                }
+
+                if (depth == 0 && (c == ',' || c == '}')) return;
+
+                if (c == '[' || c == '{') depth++;
+                if (c == ']' || c == '}') depth--;
+
+                position++;
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package ai.demo.translator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stored key and value vectors of the processed positions (used by the attention of the decoders)
+ * The positions are stored in fixed size blocks, within a block the keys and the values are in head-major order:
+ * [head][position][headSize], so the attention of a head reads contiguous segments of the memory
+ * The blocks can be shared between caches (for example between the beams of a beam search, which have the same
+ * prefix): a shared block is copied only if a new position is written into it (copy-on-write)
+ * The released blocks are kept after clear, so the cache can be reused without new allocations
+ */
+public class KeyValueCache
+{
+    // Number of positions stored in a block
+    private static final int BLOCK_SIZE = 64;
+
+    private final int headCount;
+    private final int headSize;
+    private final int maxCapacity;
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<Block> freeBlocks = new ArrayList<>();
+    private int size;
+
+    public KeyValueCache(int headCount, int headSize, int maxCapacity)
+    {
+        this.headCount = headCount;
+        this.headSize = headSize;
+        this.maxCapacity = maxCapacity;
+    }
+
+    /**
+     * Store the key and value of the next position
+     * The key is at vector[offset ...] (the heads next to each other), the value follows the key
+     */
+    public void add(float[] vector, int offset)
+    {
+        if (size == maxCapacity)
+        {
+            throw new RuntimeException("Key-value cache capacity exceeded (" + maxCapacity + ")");
+        }
+
+        int blockIndex = size / BLOCK_SIZE;
+        int position = size % BLOCK_SIZE;
+
+        if (position == 0)
+        {
+            blocks.add(newBlock());
+        }
+        else if (blocks.get(blockIndex).references > 1)
+        {
+            // The last block is shared with other caches, so it is copied before modification
+            Block block = blocks.get(blockIndex);
+            Block copy = newBlock();
+
+            System.arraycopy(block.keys, 0, copy.keys, 0, block.keys.length);
+            System.arraycopy(block.values, 0, copy.values, 0, block.values.length);
+
+            block.references--;
+            blocks.set(blockIndex, copy);
+        }
+
+        Block block = blocks.get(blockIndex);
+        int valueStart = offset + headCount * headSize;
+
+        for (int head = 0; head < headCount; head++)
+        {
+            int target = offset(head, position);
+            System.arraycopy(vector, offset + head * headSize, block.keys, target, headSize);
+            System.arraycopy(vector, valueStart + head * headSize, block.values, target, headSize);
+        }
+
+        size++;
+    }
+
+    /**
+     * Store the keys and values of all rows of a matrix (every row contains the key and the value of a position)
+     */
+    public void addAll(FloatTensor keyValues)
+    {
+        for (int row = 0; row < keyValues.getRows(); row++)
+        {
+            add(keyValues.getData(), keyValues.rowOffset(row));
+        }
+    }
+
+    /**
+     * Remove the positions after the first [newSize] positions
+     */
+    public void truncate(int newSize)
+    {
+        if (newSize >= size) return;
+
+        int blockCount = (newSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        while (blocks.size() > blockCount)
+        {
+            Block block = blocks.remove(blocks.size() - 1);
+
+            block.references--;
+            if (block.references == 0) freeBlocks.add(block);
+        }
+
+        // The rest of the last block is overwritten by the following positions (or copied first, if it is shared)
+        size = newSize;
+    }
+
+    /**
+     * Replace the content of this cache by the content of the other cache (without copying, the blocks are shared)
+     */
+    public void share(KeyValueCache other)
+    {
+        clear();
+
+        for (Block block : other.blocks)
+        {
+            block.references++;
+            blocks.add(block);
+        }
+
+        size = other.size;
+    }
+
+    /**
+     * Position of the first element of the key (or value) of a head at the given position within a block
+     * (The vectors of the following positions of the same head are next to each other)
+     */
+    public int offset(int head, int position)
+    {
+        return (head * BLOCK_SIZE + position) * headSize;
+    }
+
+    /**
+     * Remove all stored positions (the not shared blocks are retained for the next use)
+     */
+    public void clear()
+    {
+        for (Block block : blocks)
+        {
+            block.references--;
+            if (block.references == 0) freeBlocks.add(block);
+        }
+
+        blocks.clear();
+        size = 0;
+    }
+
+    private Block newBlock()
+    {
+        Block block = freeBlocks.isEmpty()
+                ? new Block(headCount * BLOCK_SIZE * headSize)
+                : freeBlocks.remove(freeBlocks.size() - 1);
+
+        block.references = 1;
+        return block;
+    }
+
+    public int getBlockCount()
+    {
+        return blocks.size();
+    }
+
+    /**
+     * Number of the stored positions in a block
+     */
+    public int getBlockSize(int blockIndex)
+    {
+        return Math.min(BLOCK_SIZE, size - blockIndex * BLOCK_SIZE);
+    }
+
+    public float[] getBlockKeys(int blockIndex)
+    {
+        return blocks.get(blockIndex).keys;
+    }
+
+    public float[] getBlockValues(int blockIndex)
+    {
+        return blocks.get(blockIndex).values;
+    }
+
+    public int getHeadSize()
+    {
+        return headSize;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Keys and values of BLOCK_SIZE positions
+     * (The references is the number of caches using the block, it is used within a single thread only)
+     */
+    private static class Block
+    {
+        private final float[] keys;
+        private final float[] values;
+        private int references;
+
+        private Block(int size)
+        {
+            this.keys = new float[size];
+            this.values = new float[size];
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ai.demo.translator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies (in nanoseconds) with log-linear buckets, similar to the HdrHistogram:
+ * every power of two range is split into 128 buckets, so the relative error of the percentiles is below 1%
+ * Recording is lock-free (thread safe), the percentiles are read without stopping the recording
+ */
+public class LatencyHistogram
+{
+    // Number of buckets per power of two range (2 ^ SUB_BUCKET_BITS)
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        if (nanos < 0) nanos = 0;
+
+        counts.incrementAndGet(bucketIndex(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * The value below which the given percentage of the recorded values are (for example 99 for the p99 latency)
+     * (The upper bound of the bucket is returned, but at most the maximum recorded value)
+     */
+    public long getPercentile(double percentile)
+    {
+        long totalCount = count.get();
+        if (totalCount == 0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            cumulative += counts.get(i);
+            if (cumulative >= target) return Math.min(bucketUpperBound(i), max.get());
+        }
+
+        return max.get();
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long totalCount = count.get();
+        return totalCount == 0 ? 0 : (double) total.get() / totalCount;
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            counts.set(i, 0);
+        }
+
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * The values below 256 have their own buckets, above that the 7 bits after the highest bit select the bucket
+     * within the power of two range
+     */
+    private static int bucketIndex(long value)
+    {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long bucketUpperBound(int index)
+    {
+        if (index < 2 * SUB_BUCKET_COUNT) return index;
+
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long subBucket = (index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
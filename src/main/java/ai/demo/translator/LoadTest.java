@@ -0,0 +1,358 @@
+package ai.demo.translator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of the translation: latency percentiles and throughput at different concurrency levels, input and
+ * output lengths (closed loop: every client thread sends the next request after the previous one is answered)
+ * Usage: LoadTest <path-of-the-parameters> [concurrency=1,2,4] [input.length=16,64] [output.length=32]
+ *        [warmup=10] [requests=100] [output=load-test.csv] [key=value ...]
+ * The inputs are random tokens, the output length is the maximum number of generated tokens (at most the context
+ * size, the synthetic models always generate that many tokens, see SyntheticModel). The concurrent greedy translations
+ * are decoded together by a BatchScheduler (as by the server, see max.batch.size). The result file is written as JSON
+ * if its name ends with .json, otherwise as CSV. The other key=value parameters override the settings
+ */
+public class LoadTest
+{
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final Transformer transformer;
+    private final int warmupCount;
+    private final int requestCount;
+
+    private final Random random = new Random(1);
+
+    public static void main(String... args) throws Exception
+    {
+        App.OUT = new PrintStream(System.out, true, "utf-8");
+
+        if (args == null || args.length < 1)
+        {
+            App.OUT.println("Usage: LoadTest <path-of-the-parameters> [concurrency=1,2,4] [input.length=16,64] " +
+                    "[output.length=32] [warmup=10] [requests=100] [output=load-test.csv] [key=value ...]");
+            return;
+        }
+
+        try
+        {
+            String path = args[0];
+
+            // The parameters of the load test, the remaining ones override the settings
+            Map<String, String> overrides = App.readOverrides(args);
+
+            int[] concurrencies = getIntList(overrides.remove("concurrency"), "1,2,4");
+            int[] inputLengths = getIntList(overrides.remove("input.length"), "16,64");
+            int[] outputLengths = getIntList(overrides.remove("output.length"), "32");
+            int warmupCount = getIntList(overrides.remove("warmup"), "10")[0];
+            int requestCount = getIntList(overrides.remove("requests"), "100")[0];
+            String outputFile = overrides.containsKey("output") ? overrides.remove("output") : "load-test.csv";
+
+            Settings settings = new Settings(path, overrides);
+
+            // The output length is passed to every translation, so it is checked before loading the model
+            for (int outputLength : outputLengths)
+            {
+                if (outputLength < 1 || outputLength > settings.getContextSize())
+                {
+                    throw new Exception("The output length should be between 1 and the context size (" + settings.getContextSize() + "): " + outputLength);
+                }
+            }
+
+            App.OUT.print("Loading parameters... ");
+            Tokenizer tokenizer = new Tokenizer(path);
+            Transformer transformer = new Transformer(settings, tokenizer);
+            App.OUT.println("Done.");
+
+            LoadTest loadTest = new LoadTest(transformer, warmupCount, requestCount);
+            List<Result> results = new ArrayList<>();
+
+            for (int outputLength : outputLengths)
+            {
+                for (int inputLength : inputLengths)
+                {
+                    for (int concurrency : concurrencies)
+                    {
+                        Result result = loadTest.run(concurrency, inputLength, outputLength);
+                        results.add(result);
+
+                        App.OUT.println(result);
+                    }
+                }
+            }
+
+            if (outputFile.toLowerCase(Locale.ROOT).endsWith(".json")) writeJson(results, outputFile);
+            else writeCsv(results, outputFile);
+
+            App.OUT.println("Results written to " + outputFile);
+        }
+        catch (Exception e)
+        {
+            App.OUT.println("\nERROR: " + e.getMessage());
+        }
+    }
+
+    public LoadTest(Transformer transformer, int warmupCount, int requestCount)
+    {
+        if (requestCount < 1)
+        {
+            throw new RuntimeException("The request count should be at least 1 (" + requestCount + ")");
+        }
+
+        this.transformer = transformer;
+        this.warmupCount = warmupCount;
+        this.requestCount = requestCount;
+    }
+
+    /**
+     * Send the warmup requests, then the measured requests by the given number of client threads
+     */
+    public Result run(int concurrency, int inputLength, int outputLength) throws Exception
+    {
+        Settings settings = transformer.getSettings();
+
+        // The input is wrapped between a START-OF-TEXT and END-OF-TEXT token
+        if (inputLength < 1 || inputLength + 2 > settings.getContextSize())
+        {
+            throw new RuntimeException("The input length should be between 1 and " + (settings.getContextSize() - 2) + " (" + inputLength + ")");
+        }
+
+        if (outputLength < 1 || outputLength > settings.getContextSize())
+        {
+            throw new RuntimeException("The output length should be between 1 and " + settings.getContextSize() + " (" + outputLength + ")");
+        }
+
+        if (concurrency < 1)
+        {
+            throw new RuntimeException("The concurrency should be at least 1 (" + concurrency + ")");
+        }
+
+        // The concurrent greedy translations are decoded together (as by the server)
+        BatchScheduler scheduler = BatchScheduler.create(transformer);
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, runnable ->
+        {
+            Thread thread = new Thread(runnable, "translator-load-test");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try
+        {
+            execute(executor, scheduler, concurrency, inputLength, outputLength, warmupCount, new LatencyHistogram(), new AtomicLong());
+
+            LatencyHistogram histogram = new LatencyHistogram();
+            AtomicLong outputTokenCount = new AtomicLong();
+
+            long start = System.nanoTime();
+            execute(executor, scheduler, concurrency, inputLength, outputLength, requestCount, histogram, outputTokenCount);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            return new Result(outputLength, concurrency, inputLength, histogram,
+                    histogram.getCount() / seconds, outputTokenCount.get() / seconds);
+        }
+        finally
+        {
+            executor.shutdownNow();
+            if (scheduler != null) scheduler.close();
+        }
+    }
+
+    /**
+     * Process the given number of requests by the client threads, measuring the latency of every request
+     */
+    private void execute(ExecutorService executor, BatchScheduler scheduler, int concurrency, int inputLength,
+                         int outputLength, int count, LatencyHistogram histogram, AtomicLong outputTokenCount) throws Exception
+    {
+        List<List<Integer>> inputs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            inputs.add(createInput(inputLength));
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        int endOfTextToken = transformer.getSettings().getEndOfTextToken();
+
+        List<Future<?>> clients = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++)
+        {
+            clients.add(executor.submit(() ->
+            {
+                for (int index = next.getAndIncrement(); index < count; index = next.getAndIncrement())
+                {
+                    long start = System.nanoTime();
+                    List<Integer> outputTokens = scheduler != null
+                            ? scheduler.processTokens(inputs.get(index), outputLength)
+                            : transformer.processTokens(inputs.get(index), outputLength);
+                    histogram.record(System.nanoTime() - start);
+
+                    int tokenCount = outputTokens.size();
+                    if (tokenCount > 0 && outputTokens.get(tokenCount - 1) == endOfTextToken) tokenCount--;
+                    outputTokenCount.addAndGet(tokenCount);
+                }
+            }));
+        }
+
+        for (Future<?> client : clients)
+        {
+            client.get();
+        }
+    }
+
+    /**
+     * Random tokens (without the START-OF-TEXT and END-OF-TEXT tokens)
+     */
+    private List<Integer> createInput(int length)
+    {
+        Settings settings = transformer.getSettings();
+
+        List<Integer> tokens = new ArrayList<>(length);
+        while (tokens.size() < length)
+        {
+            int token = random.nextInt(settings.getTokenCount());
+            if (token != settings.getStartOfTextToken() && token != settings.getEndOfTextToken()) tokens.add(token);
+        }
+
+        return tokens;
+    }
+
+    private static int[] getIntList(String value, String defaultValue)
+    {
+        if (value == null) value = defaultValue;
+
+        try
+        {
+            return Arrays.stream(value.split(",")).mapToInt(item -> Integer.parseInt(item.trim())).toArray();
+        }
+        catch (NumberFormatException e)
+        {
+            throw new RuntimeException("Invalid integer list: " + value);
+        }
+    }
+
+    private static void writeCsv(List<Result> results, String fileName) throws IOException
+    {
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8)))
+        {
+            StringBuilder header = new StringBuilder("output.length,concurrency,input.length,requests");
+            for (double percentile : PERCENTILES)
+            {
+                header.append(",p").append(formatPercentile(percentile)).append(".ms");
+            }
+            writer.println(header.append(",max.ms,mean.ms,requests.per.s,tokens.per.s"));
+
+            for (Result result : results)
+            {
+                StringBuilder line = new StringBuilder();
+                line.append(result.outputLength).append(',').append(result.concurrency).append(',')
+                        .append(result.inputLength).append(',').append(result.histogram.getCount());
+
+                for (double percentile : PERCENTILES)
+                {
+                    line.append(',').append(formatMillis(result.histogram.getPercentile(percentile)));
+                }
+
+                line.append(',').append(formatMillis(result.histogram.getMax()))
+                        .append(',').append(formatMillis(result.histogram.getMean()))
+                        .append(',').append(String.format(Locale.ROOT, "%.2f", result.requestsPerSecond))
+                        .append(',').append(String.format(Locale.ROOT, "%.2f", result.tokensPerSecond));
+
+                writer.println(line);
+            }
+        }
+    }
+
+    private static void writeJson(List<Result> results, String fileName) throws IOException
+    {
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8)))
+        {
+            writer.println("[");
+
+            for (int i = 0; i < results.size(); i++)
+            {
+                Result result = results.get(i);
+
+                StringBuilder latency = new StringBuilder();
+                for (double percentile : PERCENTILES)
+                {
+                    latency.append(Json.quote("p" + formatPercentile(percentile))).append(": ")
+                            .append(formatMillis(result.histogram.getPercentile(percentile))).append(", ");
+                }
+                latency.append("\"max\": ").append(formatMillis(result.histogram.getMax()))
+                        .append(", \"mean\": ").append(formatMillis(result.histogram.getMean()));
+
+                writer.printf(Locale.ROOT, "  {\"output.length\": %d, \"concurrency\": %d, \"input.length\": %d, " +
+                                "\"requests\": %d, \"latency.ms\": {%s}, \"requests.per.s\": %.2f, \"tokens.per.s\": %.2f}%s%n",
+                        result.outputLength, result.concurrency, result.inputLength, result.histogram.getCount(),
+                        latency, result.requestsPerSecond, result.tokensPerSecond, i < results.size() - 1 ? "," : "");
+            }
+
+            writer.println("]");
+        }
+    }
+
+    private static String formatPercentile(double percentile)
+    {
+        return percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile);
+    }
+
+    private static String formatMillis(double nanos)
+    {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    /**
+     * Result of the load test with a given concurrency, input and output length
+     */
+    public static class Result
+    {
+        private final int outputLength;
+        private final int concurrency;
+        private final int inputLength;
+        private final LatencyHistogram histogram;
+        private final double requestsPerSecond;
+        private final double tokensPerSecond;
+
+        private Result(int outputLength, int concurrency, int inputLength, LatencyHistogram histogram,
+                       double requestsPerSecond, double tokensPerSecond)
+        {
+            this.outputLength = outputLength;
+            this.concurrency = concurrency;
+            this.inputLength = inputLength;
+            this.histogram = histogram;
+            this.requestsPerSecond = requestsPerSecond;
+            this.tokensPerSecond = tokensPerSecond;
+        }
+
+        public LatencyHistogram getHistogram()
+        {
+            return histogram;
+        }
+
+        public double getRequestsPerSecond()
+        {
+            return requestsPerSecond;
+        }
+
+        public double getTokensPerSecond()
+        {
+            return tokensPerSecond;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.ROOT, "Output: %d, concurrency: %d, input: %d, requests: %d, " +
+                            "latency (ms) p50: %s, p99: %s, max: %s, %.1f requests/s, %.1f tokens/s",
+                    outputLength, concurrency, inputLength, histogram.getCount(),
+                    formatMillis(histogram.getPercentile(50)), formatMillis(histogram.getPercentile(99)),
+                    formatMillis(histogram.getMax()), requestsPerSecond, tokensPerSecond);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package ai.demo.translator;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Timing and throughput metrics of the translation stages, published as a JMX MBean (ai.demo.translator:type=Metrics)
+ * The metrics are process-wide (shared by all transformers), and disabled until a transformer is created with the
+ * metrics.enabled setting. When disabled, the measurement points do only a flag check (without reading the clock)
+ * Usage at a measurement point:
+ *     long start = Metrics.start();
+ *     ...
+ *     Metrics.record(Metrics.Stage.ENCODER_STACK, start);
+ */
+public class Metrics implements DynamicMBean
+{
+    public enum Stage
+    {
+        TRANSLATION,
+        TOKENIZER_ENCODE,
+        TOKENIZER_DECODE,
+        ENCODER_STACK,
+        CROSS_KEY_VALUE,
+        DECODER_STEP,
+        TOKEN_SELECTION,
+        TIME_TO_FIRST_TOKEN,
+        TOKEN_LATENCY,
+        QUEUE_WAIT;
+
+        /**
+         * Name in the JMX attributes (for example EncoderStack)
+         */
+        private String getAttributeName()
+        {
+            StringBuilder result = new StringBuilder();
+            for (String part : name().split("_"))
+            {
+                result.append(part.charAt(0)).append(part.substring(1).toLowerCase(Locale.ROOT));
+            }
+
+            return result.toString();
+        }
+
+        /**
+         * Name in the dump (for example encoder stack)
+         */
+        private String getDisplayName()
+        {
+            return name().replace('_', ' ').toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final String OBJECT_NAME = "ai.demo.translator:type=Metrics";
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private static volatile boolean isEnabled;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+
+    private final AtomicLong translationCount = new AtomicLong();
+    private final AtomicLong inputTokenCount = new AtomicLong();
+    private final AtomicLong outputTokenCount = new AtomicLong();
+
+    // Start of the measurement (at enabling or at the last reset), for the throughput
+    private volatile long startTime = System.nanoTime();
+
+    // The JMX attributes by name (the getters of the values)
+    private final Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+    private final MBeanInfo info;
+
+    private ScheduledExecutorService dumpExecutor;
+    private boolean isRegistered;
+
+    private Metrics()
+    {
+        for (int i = 0; i < histograms.length; i++)
+        {
+            histograms[i] = new LatencyHistogram();
+        }
+
+        attributes.put("TranslationCount", translationCount::get);
+        attributes.put("InputTokenCount", inputTokenCount::get);
+        attributes.put("OutputTokenCount", outputTokenCount::get);
+        attributes.put("OutputTokensPerSecond", this::getOutputTokensPerSecond);
+
+        for (Stage stage : Stage.values())
+        {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            String name = stage.getAttributeName();
+
+            attributes.put(name + "Count", histogram::getCount);
+            attributes.put(name + "MeanMs", () -> toMillis(histogram.getMean()));
+            attributes.put(name + "P50Ms", () -> toMillis(histogram.getPercentile(50)));
+            attributes.put(name + "P90Ms", () -> toMillis(histogram.getPercentile(90)));
+            attributes.put(name + "P99Ms", () -> toMillis(histogram.getPercentile(99)));
+            attributes.put(name + "MaxMs", () -> toMillis(histogram.getMax()));
+        }
+
+        List<MBeanAttributeInfo> attributeInfos = new ArrayList<>();
+        for (Map.Entry<String, Supplier<Object>> entry : attributes.entrySet())
+        {
+            String type = entry.getValue().get().getClass().getName();
+            attributeInfos.add(new MBeanAttributeInfo(entry.getKey(), type, entry.getKey(), true, false, false));
+        }
+
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Reset all metrics", new MBeanParameterInfo[0],
+                "void", MBeanOperationInfo.ACTION);
+
+        info = new MBeanInfo(Metrics.class.getName(), "Timing and throughput metrics of the translation stages",
+                attributeInfos.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] {reset}, null);
+    }
+
+    /**
+     * Enable the metrics: register the MBean, and start the periodic dump if the interval (in seconds) is positive
+     */
+    public static void enable(int dumpInterval)
+    {
+        INSTANCE.start(dumpInterval);
+    }
+
+    public static boolean isEnabled()
+    {
+        return isEnabled;
+    }
+
+    public static Metrics getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Start time of a measurement (0 if the metrics are disabled)
+     */
+    public static long start()
+    {
+        return isEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the time elapsed since the start (nothing happens if the metrics were disabled at the start)
+     */
+    public static void record(Stage stage, long start)
+    {
+        if (start != 0) INSTANCE.histograms[stage.ordinal()].record(System.nanoTime() - start);
+    }
+
+    /**
+     * Record a finished translation: the total time and the number of tokens
+     */
+    public static void recordTranslation(long start, int inputTokenCount, int outputTokenCount)
+    {
+        if (start == 0) return;
+
+        INSTANCE.histograms[Stage.TRANSLATION.ordinal()].record(System.nanoTime() - start);
+        INSTANCE.translationCount.incrementAndGet();
+        INSTANCE.inputTokenCount.addAndGet(inputTokenCount);
+        INSTANCE.outputTokenCount.addAndGet(outputTokenCount);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage)
+    {
+        return histograms[stage.ordinal()];
+    }
+
+    public long getTranslationCount()
+    {
+        return translationCount.get();
+    }
+
+    public long getInputTokenCount()
+    {
+        return inputTokenCount.get();
+    }
+
+    public long getOutputTokenCount()
+    {
+        return outputTokenCount.get();
+    }
+
+    /**
+     * Average throughput since the metrics were enabled (or reset)
+     */
+    public double getOutputTokensPerSecond()
+    {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return seconds > 0 ? outputTokenCount.get() / seconds : 0;
+    }
+
+    public void reset()
+    {
+        for (LatencyHistogram histogram : histograms)
+        {
+            histogram.reset();
+        }
+
+        translationCount.set(0);
+        inputTokenCount.set(0);
+        outputTokenCount.set(0);
+
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Summary of the metrics (the stages without measurements are omitted)
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder result = new StringBuilder(String.format(Locale.ROOT,
+                "Translations: %d, input tokens: %d, output tokens: %d, %.1f tokens/s",
+                translationCount.get(), inputTokenCount.get(), outputTokenCount.get(), getOutputTokensPerSecond()));
+
+        for (Stage stage : Stage.values())
+        {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            if (histogram.getCount() == 0) continue;
+
+            result.append(String.format(Locale.ROOT, "%n  %s: count: %d, mean: %.3f ms, p50: %.3f ms, p99: %.3f ms, max: %.3f ms",
+                    stage.getDisplayName(), histogram.getCount(), toMillis(histogram.getMean()),
+                    toMillis(histogram.getPercentile(50)), toMillis(histogram.getPercentile(99)), toMillis(histogram.getMax())));
+        }
+
+        return result.toString();
+    }
+
+    private synchronized void start(int dumpInterval)
+    {
+        if ( ! isEnabled)
+        {
+            startTime = System.nanoTime();
+            isEnabled = true;
+        }
+
+        if ( ! isRegistered)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+                isRegistered = true;
+            }
+            catch (JMException e)
+            {
+                App.OUT.println("WARNING: Cannot register the metrics MBean: " + e.getMessage());
+            }
+        }
+
+        if (dumpInterval > 0 && dumpExecutor == null)
+        {
+            dumpExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+            {
+                Thread thread = new Thread(runnable, "translator-metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            dumpExecutor.scheduleAtFixedRate(() -> App.OUT.println("\nMetrics: " + this), dumpInterval, dumpInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    private static double toMillis(double nanos)
+    {
+        return nanos / 1e6;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        Supplier<Object> getter = attributes.get(attribute);
+        if (getter == null) throw new AttributeNotFoundException("Unknown attribute: " + attribute);
+
+        return getter.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names)
+    {
+        AttributeList result = new AttributeList();
+        for (String name : names)
+        {
+            Supplier<Object> getter = attributes.get(name);
+            if (getter != null) result.add(new Attribute(name, getter.get()));
+        }
+
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException("The metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+    {
+        if ( ! "reset".equals(actionName)) throw new ReflectionException(new NoSuchMethodException(actionName));
+
+        reset();
+        return null;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+        return info;
+    }
+}
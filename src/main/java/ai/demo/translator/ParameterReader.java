@@ -4,9 +4,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class ParameterReader
@@ -21,25 +21,174 @@ public class ParameterReader
         return isPresent ? readVectorFile(path, fileName, size) : null;
     }
 
-    public static float[][] readMatrixFile(String path, String fileName, int rows, int cols)
+    public static Tensor readMatrixFile(String path, String fileName, int rows, int cols)
     {
         float[] numbers = readParameterFile(path + "/" + fileName, rows * cols);
-        return Util.splitVector(numbers, rows);
+        return new FloatTensor(rows, cols, numbers);
+    }
+
+    /**
+     * Read a matrix file, converting the values to the requested format
+     * For the 16-bit formats a file with 16-bit values (named as <name>.float16.dat or <name>.bfloat16.dat) is used
+     * if it exists, otherwise the float values of the normal parameter file are converted
+     */
+    public static Tensor readMatrixFile(String path, String fileName, int rows, int cols, WeightFormat format)
+    {
+        String name = path + "/" + fileName;
+
+        if (format == WeightFormat.FLOAT16 || format == WeightFormat.BFLOAT16)
+        {
+            boolean isBFloat16 = format == WeightFormat.BFLOAT16;
+
+            String name16 = name + "." + format.getName();
+            if ( ! findFiles(name16 + ".dat").isEmpty())
+            {
+                return new Float16Tensor(rows, cols, readShortParameterFile(name16, rows * cols), isBFloat16);
+            }
+        }
+
+        return toTensor(rows, cols, readParameterFile(name, rows * cols), format, cols);
+    }
+
+    /**
+     * Read multiple matrix files with the same shape, and concatenate them horizontally into a single matrix
+     * (The result has the same number of rows, and the columns of the matrices next to each other)
+     * At int8 format the original matrices are quantized separately (every matrix has its own scale for every row)
+     */
+    public static Tensor readMatrixFiles(String path, String[] fileNames, int rows, int cols, WeightFormat format)
+    {
+        int count = fileNames.length;
+        float[] numbers = new float[rows * cols * count];
+
+        for (int i = 0; i < count; i++)
+        {
+            float[] matrix = readMatrixValues(path + "/" + fileNames[i], rows * cols, format);
+
+            for (int row = 0; row < rows; row++)
+            {
+                System.arraycopy(matrix, row * cols, numbers, (row * count + i) * cols, cols);
+            }
+        }
+
+        return toTensor(rows, cols * count, numbers, format, cols);
+    }
+
+    /**
+     * Read multiple vector files with the same size, and concatenate them into a single vector
+     * The missing vectors (isPresent is false) are filled by zeros, if all of them is missing the result is null
+     */
+    public static float[] readVectorFiles(String path, String[] fileNames, int size, boolean[] isPresent)
+    {
+        float[] ret = null;
+
+        for (int i = 0; i < fileNames.length; i++)
+        {
+            if (isPresent[i])
+            {
+                if (ret == null) ret = new float[size * fileNames.length];
+
+                float[] vector = readVectorFile(path, fileNames[i], size);
+                System.arraycopy(vector, 0, ret, i * size, size);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Read the values of a matrix file as float (the 16-bit files of the 16-bit formats are used as well)
+     */
+    private static float[] readMatrixValues(String name, int size, WeightFormat format)
+    {
+        if (format == WeightFormat.FLOAT16 || format == WeightFormat.BFLOAT16)
+        {
+            String name16 = name + "." + format.getName();
+            if ( ! findFiles(name16 + ".dat").isEmpty())
+            {
+                // The conversion back to the 16-bit format will give the same values
+                short[] values = readShortParameterFile(name16, size);
+
+                float[] ret = new float[size];
+                for (int i = 0; i < size; i++)
+                {
+                    ret[i] = format == WeightFormat.BFLOAT16
+                            ? Float16Tensor.bFloat16ToFloat(values[i])
+                            : Float16Tensor.float16ToFloat(values[i]);
+                }
+
+                return ret;
+            }
+        }
+
+        return readParameterFile(name, size);
+    }
+
+    /**
+     * Create a tensor of the requested format from float values
+     * (At int8 format every groupSize columns of a row are quantized with a separate scale)
+     */
+    private static Tensor toTensor(int rows, int cols, float[] numbers, WeightFormat format, int groupSize)
+    {
+        switch (format)
+        {
+            case FLOAT16:
+                return Float16Tensor.convert(rows, cols, numbers, false);
+            case BFLOAT16:
+                return Float16Tensor.convert(rows, cols, numbers, true);
+            case INT8:
+                return Int8Tensor.quantize(rows, cols, numbers, groupSize);
+            default:
+                return new FloatTensor(rows, cols, numbers);
+        }
     }
 
     private static float[] readParameterFile(String fileName, int size)
     {
-        fileName = fileName + ".dat";
+        float[] ret = new float[size];
+
+        int offset = 0;
+        for (File file : findParameterFiles(fileName + ".dat", size, 4))
+        {
+            // The files (or file parts) are read one after the other into the array
+            int count = (int) (file.length() / 4);
+            mapFile(file).asFloatBuffer().get(ret, offset, count);
+            offset += count;
+        }
+
+        return ret;
+    }
+
+    private static short[] readShortParameterFile(String fileName, int size)
+    {
+        short[] ret = new short[size];
+
+        int offset = 0;
+        for (File file : findParameterFiles(fileName + ".dat", size, 2))
+        {
+            // The files (or file parts) are read one after the other into the array
+            int count = (int) (file.length() / 2);
+            mapFile(file).asShortBuffer().get(ret, offset, count);
+            offset += count;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Find the parameter file, or the parts of it, checking the size
+     */
+    private static List<File> findParameterFiles(String fileName, int size, int valueSize)
+    {
         File file = new File(fileName);
 
         if (file.exists())
         {
-            if (file.length() != (long) size * 4)
+            if (file.length() != (long) size * valueSize)
             {
-                throw new RuntimeException("The size of the file (" + fileName + ", " + file.length() + ") is incorrect. Expected: " + size * 4);
+                throw new RuntimeException("The size of the file (" + fileName + ", " + file.length() + ") is incorrect. Expected: " + (long) size * valueSize);
             }
 
-            return readFile(file);
+            return Collections.singletonList(file);
         }
         else
         {
@@ -48,37 +197,18 @@ public class ParameterReader
 
             if ( ! partFiles.isEmpty())
             {
-                float[][] parts = new float[partFiles.size()][size];
-
-                // Read all the part files
-                int i = 0;
-                int sumSize = 0;
+                long sumSize = 0;
                 for (File partFile : partFiles)
                 {
-                    parts[i] = readFile(partFile);
-                    sumSize += parts[i].length;
-                    i++;
-                }
-
-                if (sumSize != size)
-                {
-                    throw new RuntimeException("The sum size of the file parts (" + sumSize * 4 + ") is incorrect. Expected: " + (size * 4));
+                    sumSize += partFile.length();
                 }
 
-                // Concatenate the parts into a single array
-                float[] ret = new float[sumSize];
-
-                int index = 0;
-                for (float[] part : parts)
+                if (sumSize != (long) size * valueSize)
                 {
-                    for (float value : part)
-                    {
-                        ret[index] = value;
-                        index++;
-                    }
+                    throw new RuntimeException("The sum size of the file parts (" + sumSize + ") is incorrect. Expected: " + (long) size * valueSize);
                 }
 
-                return ret;
+                return partFiles;
             }
             else
             {
@@ -87,6 +217,16 @@ public class ParameterReader
         }
     }
 
+    /**
+     * Find the file or the parts of it (without checking the size)
+     */
+    private static List<File> findFiles(String fileName)
+    {
+        File file = new File(fileName);
+
+        return file.exists() ? Collections.singletonList(file) : findPartFiles(fileName);
+    }
+
     private static List<File> findPartFiles(String fileName)
     {
         List<File> partFiles = new ArrayList<>();
@@ -105,27 +245,20 @@ public class ParameterReader
         return partFiles;
     }
 
-    private static float[] readFile(File file)
+    private static ByteBuffer mapFile(File file)
     {
-        int size = (int) (file.length() / 4);
-
-        float[] array = new float[size];
-
         try (FileInputStream stream = new FileInputStream(file))
         {
             FileChannel inChannel = stream.getChannel();
 
             ByteBuffer buffer = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
-
             buffer.order(ByteOrder.BIG_ENDIAN);
-            FloatBuffer floatBuffer = buffer.asFloatBuffer();
-            floatBuffer.get(array);
+
+            return buffer;
         }
         catch (Exception e)
         {
             throw new RuntimeException("Parameter file read error. (" + file.getName() + ")");
         }
-
-        return array;
     }
 }
@@ -0,0 +1,101 @@
+package ai.demo.translator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Accuracy report of a weight format compared to the original float weights
+ * Every line of the input file is translated by both models, and the outputs are compared token by token
+ * Usage: QuantizationReport <path-of-the-parameters> <input-text-file> [weight-format (default: int8)]
+ */
+public class QuantizationReport
+{
+    public static void main(String... args) throws Exception
+    {
+        PrintStream out = new PrintStream(System.out, true, "utf-8");
+
+        // The warnings of the settings are printed to the App.OUT
+        App.OUT = out;
+
+        if (args == null || args.length < 2)
+        {
+            out.println("Usage: QuantizationReport <path-of-the-parameters> <input-text-file> [weight-format]");
+            return;
+        }
+
+        String path = args[0];
+        List<String> lines = Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8);
+        String formatName = args.length > 2 ? args[2] : WeightFormat.INT8.getName();
+
+        Tokenizer tokenizer = new Tokenizer(path);
+
+        Settings referenceSettings = new Settings(path, Collections.singletonMap("weight.format", WeightFormat.FLOAT32.getName()));
+        Settings testedSettings = new Settings(path, Collections.singletonMap("weight.format", formatName));
+
+        out.println("Loading the float model...");
+        Transformer reference = new Transformer(referenceSettings, tokenizer);
+        out.println("Loading the " + testedSettings.getWeightFormat().getName() + " model...");
+        Transformer tested = new Transformer(testedSettings, tokenizer);
+
+        int sentenceCount = 0;
+        int exactMatchCount = 0;
+        long referenceTokenCount = 0;
+        long matchingTokenCount = 0;
+        long referenceTime = 0;
+        long testedTime = 0;
+
+        for (String line : lines)
+        {
+            if (line.trim().isEmpty()) continue;
+
+            List<Integer> inputTokens = tokenizer.encode(line);
+
+            long start = System.nanoTime();
+            List<Integer> referenceTokens = reference.processTokens(new ArrayList<>(inputTokens));
+            long middle = System.nanoTime();
+            List<Integer> testedTokens = tested.processTokens(new ArrayList<>(inputTokens));
+            long end = System.nanoTime();
+
+            referenceTime += middle - start;
+            testedTime += end - middle;
+
+            // Count the matching tokens at the same positions
+            int matching = 0;
+            for (int i = 0; i < Math.min(referenceTokens.size(), testedTokens.size()); i++)
+            {
+                if (referenceTokens.get(i).equals(testedTokens.get(i))) matching++;
+            }
+
+            sentenceCount++;
+            referenceTokenCount += referenceTokens.size();
+            matchingTokenCount += matching;
+
+            if (referenceTokens.equals(testedTokens))
+            {
+                exactMatchCount++;
+            }
+            else
+            {
+                out.println("\nInput:  " + line);
+                out.println("Float:  " + tokenizer.decode(referenceTokens));
+                out.println("Tested: " + tokenizer.decode(testedTokens));
+            }
+        }
+
+        out.println("\nSentences: " + sentenceCount);
+        out.println("Identical translations: " + exactMatchCount + " (" + percent(exactMatchCount, sentenceCount) + ")");
+        out.println("Matching tokens: " + matchingTokenCount + " / " + referenceTokenCount + " (" + percent(matchingTokenCount, referenceTokenCount) + ")");
+        out.println("Time (float): " + referenceTime / 1000000 + " ms");
+        out.println("Time (" + formatName + "): " + testedTime / 1000000 + " ms");
+    }
+
+    private static String percent(long value, long total)
+    {
+        return total == 0 ? "-" : String.format("%.1f%%", value * 100d / total);
+    }
+}
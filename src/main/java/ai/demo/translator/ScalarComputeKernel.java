@@ -0,0 +1,146 @@
+package ai.demo.translator;
+
+/**
+ * Plain Java implementation of the compute kernel (works on every Java version)
+ */
+class ScalarComputeKernel implements ComputeKernel
+{
+    private static final int ROW_BLOCK = 4;
+
+    @Override
+    public float dotProduct(float[] vector1, int offset1, float[] vector2, int offset2, int length)
+    {
+        float sum = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            sum = sum + vector1[offset1 + i] * vector2[offset2 + i];
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void addScaled(float scalar, float[] vector, int offset, float[] target, int targetOffset, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            target[targetOffset + i] = target[targetOffset + i] + scalar * vector[offset + i];
+        }
+    }
+
+    @Override
+    public float dotProduct(float[] vector, int offset, byte[] values, int valuesOffset, int length)
+    {
+        float sum = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            sum = sum + vector[offset + i] * values[valuesOffset + i];
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void addScaled(float scalar, byte[] values, int offset, float[] target, int targetOffset, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            target[targetOffset + i] = target[targetOffset + i] + scalar * values[offset + i];
+        }
+    }
+
+    @Override
+    public float dotProductFloat16(float[] vector, int offset, short[] values, int valuesOffset, int length)
+    {
+        float sum = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            sum = sum + vector[offset + i] * Float16Tensor.float16ToFloat(values[valuesOffset + i]);
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void addScaledFloat16(float scalar, short[] values, int offset, float[] target, int targetOffset, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            target[targetOffset + i] = target[targetOffset + i] + scalar * Float16Tensor.float16ToFloat(values[offset + i]);
+        }
+    }
+
+    @Override
+    public float dotProductBFloat16(float[] vector, int offset, short[] values, int valuesOffset, int length)
+    {
+        float sum = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            sum = sum + vector[offset + i] * Float16Tensor.bFloat16ToFloat(values[valuesOffset + i]);
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void addScaledBFloat16(float scalar, short[] values, int offset, float[] target, int targetOffset, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            target[targetOffset + i] = target[targetOffset + i] + scalar * Float16Tensor.bFloat16ToFloat(values[offset + i]);
+        }
+    }
+
+    @Override
+    public void multiplyBlock(float[] input, int inputOffset, int inputStride, int rowCount, int inner,
+                              float[] matrix, int matrixOffset, int matrixStride,
+                              float[] target, int targetOffset, int targetStride, int length)
+    {
+        // Processing a few rows at a time, so the actual part of the target stays in the L1 cache
+        for (int rowStart = 0; rowStart < rowCount; rowStart += ROW_BLOCK)
+        {
+            int rowEnd = Math.min(rowStart + ROW_BLOCK, rowCount);
+
+            for (int i = 0; i < inner; i++)
+            {
+                for (int row = rowStart; row < rowEnd; row++)
+                {
+                    float value = input[inputOffset + row * inputStride + i];
+                    addScaled(value, matrix, matrixOffset + i * matrixStride, target, targetOffset + row * targetStride, length);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addVectors(float[] vector1, float[] vector2, float[] result, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            result[i] = vector1[i] + vector2[i];
+        }
+    }
+
+    @Override
+    public float expAndSum(float[] vector, float max, float[] result, int length)
+    {
+        float sum = 0;
+        for (int i = 0; i < length; i++)
+        {
+            result[i] = Util.fastExp(vector[i] - max);
+            sum = sum + result[i];
+        }
+
+        return sum;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "scalar";
+    }
+}
@@ -1,6 +1,7 @@
 package ai.demo.translator;
 
 import java.io.*;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
@@ -28,6 +29,30 @@ public class Settings
 
     private final float epsilon;
 
+    private final WeightFormat weightFormat;
+
+    private final int beamSize;
+    private final float lengthPenalty;
+
+    private final int draftSize;
+
+    private final int maxOutputLength;
+
+    private final int sessionPoolSize;
+
+    private final int maxBatchSize;
+
+    private final int cacheSize;
+
+    private final int serverPort;
+    private final int serverThreadCount;
+    private final int serverQueueSize;
+
+    private final int batchWorkerCount;
+
+    private final boolean isMetricsEnabled;
+    private final int metricsDumpInterval;
+
     private final String prompt;
 
     private final boolean hasAttentionQueryBias;
@@ -38,6 +63,14 @@ public class Settings
     private final boolean hasMlpLayer2Bias;
 
     public Settings(String path) throws Exception
+    {
+        this(path, Collections.emptyMap());
+    }
+
+    /**
+     * Initialization with properties overriding the values of the model.properties file (for example given at command line)
+     */
+    public Settings(String path, Map<String, String> overrides) throws Exception
     {
         this.path = path;
 
@@ -69,6 +102,11 @@ public class Settings
             throw new Exception("Cannot read model.properties file: " + fileName);
         }
 
+        for (Map.Entry<String, String> entry : overrides.entrySet())
+        {
+            properties.put(entry.getKey().toLowerCase().trim(), entry.getValue().trim());
+        }
+
         // Find the necessary in the collected properties
         tokenCount = getIntProperty(properties, "token.count");
         startOfTextToken = getIntProperty(properties, "start.of.text.token");
@@ -90,6 +128,71 @@ public class Settings
 
         prompt = getProperty(properties, "prompt");
 
+        weightFormat = toWeightFormat(getProperty(properties, "weight.format", true), WeightFormat.FLOAT32);
+
+        beamSize = getIntProperty(properties, "beam.size", 1);
+        lengthPenalty = getFloatProperty(properties, "length.penalty", 1.0f);
+
+        if (beamSize < 1)
+        {
+            throw new Exception("The beam size should be at least 1 (" + beamSize + ").");
+        }
+
+        draftSize = getIntProperty(properties, "speculative.draft.size", 0);
+
+        if (draftSize < 0)
+        {
+            throw new Exception("The speculative draft size can't be negative (" + draftSize + ").");
+        }
+
+        maxOutputLength = getIntProperty(properties, "max.output.length", contextSize);
+
+        // The output can't be longer than the context
+        if (maxOutputLength < 1 || maxOutputLength > contextSize)
+        {
+            throw new Exception("The maximum output length should be between 1 and the context size (" + contextSize + "): " + maxOutputLength);
+        }
+
+        sessionPoolSize = getIntProperty(properties, "session.pool.size", Runtime.getRuntime().availableProcessors());
+
+        if (sessionPoolSize < 0)
+        {
+            throw new Exception("The session pool size can't be negative (" + sessionPoolSize + ").");
+        }
+
+        maxBatchSize = getIntProperty(properties, "max.batch.size", 16);
+
+        if (maxBatchSize < 0)
+        {
+            throw new Exception("The maximum batch size can't be negative (" + maxBatchSize + ").");
+        }
+
+        cacheSize = getIntProperty(properties, "cache.size", 0);
+
+        if (cacheSize < 0)
+        {
+            throw new Exception("The cache size can't be negative (" + cacheSize + ").");
+        }
+
+        serverPort = getIntProperty(properties, "server.port", 8080);
+        serverThreadCount = getIntProperty(properties, "server.thread.count", Runtime.getRuntime().availableProcessors());
+        serverQueueSize = getIntProperty(properties, "server.queue.size", 100);
+
+        batchWorkerCount = getIntProperty(properties, "batch.worker.count", Runtime.getRuntime().availableProcessors());
+
+        if (batchWorkerCount < 1)
+        {
+            throw new Exception("The batch worker count should be at least 1 (" + batchWorkerCount + ").");
+        }
+
+        isMetricsEnabled = getBooleanProperty(properties, "metrics.enabled", false);
+        metricsDumpInterval = getIntProperty(properties, "metrics.dump.interval", 0);
+
+        if (serverThreadCount < 1 || serverQueueSize < 0)
+        {
+            throw new Exception("Invalid server thread count or queue size (" + serverThreadCount + ", " + serverQueueSize + ").");
+        }
+
         hasAttentionQueryBias = getBooleanProperty(properties, "has.attention.query.bias", true);
         hasAttentionKeyBias = getBooleanProperty(properties, "has.attention.key.bias", true);
         hasAttentionValueBias = getBooleanProperty(properties, "has.attention.value.bias", true);
@@ -137,11 +240,23 @@ public class Settings
         return toInt(getProperty(properties, key));
     }
 
+    private int getIntProperty(Map<String, String> properties, String key, int defaultValue) throws Exception
+    {
+        String value = getProperty(properties, key, true);
+        return value == null ? defaultValue : toInt(value);
+    }
+
     private float getFloatProperty(Map<String, String> properties, String key) throws Exception
     {
         return toFloat(getProperty(properties, key));
     }
 
+    private float getFloatProperty(Map<String, String> properties, String key, float defaultValue) throws Exception
+    {
+        String value = getProperty(properties, key, true);
+        return value == null ? defaultValue : toFloat(value);
+    }
+
     private boolean getBooleanProperty(Map<String, String> properties, String key, boolean defaultValue) throws Exception
     {
         return toBoolean(getProperty(properties, key, true), defaultValue);
@@ -202,6 +317,20 @@ public class Settings
         }
     }
 
+    private WeightFormat toWeightFormat(String value, WeightFormat defaultValue) throws Exception
+    {
+        if (value == null) return defaultValue;
+
+        WeightFormat format = WeightFormat.of(value);
+
+        if (format == null)
+        {
+            throw new Exception("Unknown weight format (" + value + ").");
+        }
+
+        return format;
+    }
+
     public String getPath()
     {
         return path;
@@ -272,6 +401,109 @@ public class Settings
         return epsilon;
     }
 
+    public WeightFormat getWeightFormat()
+    {
+        return weightFormat;
+    }
+
+    /**
+     * Number of beams of the beam search (1 means greedy decoding)
+     */
+    public int getBeamSize()
+    {
+        return beamSize;
+    }
+
+    /**
+     * Exponent of the length normalization of the beam search scores (score / length ^ lengthPenalty)
+     */
+    public float getLengthPenalty()
+    {
+        return lengthPenalty;
+    }
+
+    /**
+     * Maximum number of draft tokens verified in a step of the speculative decoding (0 means disabled)
+     */
+    public int getDraftSize()
+    {
+        return draftSize;
+    }
+
+    /**
+     * Maximum number of generated tokens of a translation (at most the context size)
+     */
+    public int getMaxOutputLength()
+    {
+        return maxOutputLength;
+    }
+
+    /**
+     * Maximum number of idle translation sessions kept for reuse (with their workspace and key-value cache memory)
+     */
+    public int getSessionPoolSize()
+    {
+        return sessionPoolSize;
+    }
+
+    /**
+     * Maximum number of translations decoded together by the server and the batch file translation (0: no batching)
+     */
+    public int getMaxBatchSize()
+    {
+        return maxBatchSize;
+    }
+
+    /**
+     * Memory budget of the translation cache of the server in megabytes (0: no cache)
+     */
+    public int getCacheSize()
+    {
+        return cacheSize;
+    }
+
+    public int getServerPort()
+    {
+        return serverPort;
+    }
+
+    /**
+     * Maximum number of translations processed at the same time by the server
+     */
+    public int getServerThreadCount()
+    {
+        return serverThreadCount;
+    }
+
+    /**
+     * Maximum number of requests waiting for processing (the server rejects the requests above it)
+     */
+    public int getServerQueueSize()
+    {
+        return serverQueueSize;
+    }
+
+    /**
+     * Number of the translation workers of the batch file translation
+     */
+    public int getBatchWorkerCount()
+    {
+        return batchWorkerCount;
+    }
+
+    public boolean isMetricsEnabled()
+    {
+        return isMetricsEnabled;
+    }
+
+    /**
+     * Interval of printing the metrics in seconds (0: never)
+     */
+    public int getMetricsDumpInterval()
+    {
+        return metricsDumpInterval;
+    }
+
     public String getPrompt()
     {
         return prompt;
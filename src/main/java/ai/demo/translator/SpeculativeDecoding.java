@@ -0,0 +1,132 @@
+package ai.demo.translator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Speculative greedy decoding using the source (and the already generated output) as draft
+ * Translations often copy parts of the source (names, numbers, urls, code), so the tokens following the last few
+ * generated tokens at their earlier occurrence are proposed as draft. The actual token and the draft tokens are
+ * processed by the decoder stack in a single batched step, and the draft is accepted while it matches the greedy
+ * prediction, so the result is the same as the normal greedy decoding, but with fewer decoder steps
+ * (With the metrics enabled the saving is visible: the decoder step count is less than the output token count)
+ */
+public class SpeculativeDecoding
+{
+    // The longest n-gram searched in the source and the output (the shorter ones are tried if it isn't found)
+    private static final int MAX_NGRAM_SIZE = 3;
+
+    private final Transformer transformer;
+    private final int draftSize;
+
+    public SpeculativeDecoding(Transformer transformer, int draftSize)
+    {
+        this.transformer = transformer;
+        this.draftSize = draftSize;
+    }
+
+    /**
+     * Translate the input tokens, returning the generated tokens (the same as the greedy decoding)
+     */
+    public List<Integer> processTokens(List<Integer> inputTokens)
+    {
+        return processTokens(inputTokens, transformer.getSettings().getMaxOutputLength(), token -> {});
+    }
+
+    /**
+     * Translate the input tokens (generating at most maxOutputLength tokens), passing the accepted tokens
+     * to the tokenConsumer one by one
+     */
+    List<Integer> processTokens(List<Integer> inputTokens, int maxOutputLength, IntConsumer tokenConsumer)
+    {
+        Settings settings = transformer.getSettings();
+
+        List<Integer> result = new ArrayList<>();
+
+        TranslationSession session = transformer.startTranslation(inputTokens);
+
+        try
+        {
+            int token = transformer.getFirstDecoderToken();
+            int pos = 0;
+
+            while (pos < maxOutputLength)
+            {
+                List<Integer> draft = findDraft(inputTokens, result, Math.min(draftSize, maxOutputLength - pos - 1));
+
+                // Process the actual token and the draft tokens together (all rows belong to the same session,
+                // and the rows are processed in order, so every row attends to the previous ones only)
+                int count = draft.size() + 1;
+                TranslationSession[] sessions = new TranslationSession[count];
+                int[] positions = new int[count];
+                int[] tokens = new int[count];
+
+                for (int i = 0; i < count; i++)
+                {
+                    sessions[i] = session;
+                    positions[i] = pos + i;
+                    tokens[i] = i == 0 ? token : draft.get(i - 1);
+                }
+
+                int[] predictions = transformer.executeDecoderStack(sessions, positions, tokens);
+
+                // The prediction of a row is valid if the previous draft tokens were predicted correctly
+                int accepted = 0;
+                while (true)
+                {
+                    int prediction = predictions[accepted];
+                    result.add(prediction);
+                    tokenConsumer.accept(prediction);
+                    accepted++;
+
+                    if (prediction == settings.getEndOfTextToken()) return result;
+
+                    if (accepted == count || prediction != draft.get(accepted - 1)) break;
+                }
+
+                // Remove the keys and values of the rejected draft tokens
+                session.truncate(pos + accepted);
+
+                pos = pos + accepted;
+                token = result.get(result.size() - 1);
+            }
+        }
+        finally
+        {
+            transformer.finishTranslation(session);
+        }
+
+        return result;
+    }
+
+    /**
+     * Find the last generated tokens (n-gram) in the source or earlier in the output, and return the following tokens
+     */
+    private List<Integer> findDraft(List<Integer> source, List<Integer> output, int maxSize)
+    {
+        if (maxSize <= 0) return Collections.emptyList();
+
+        for (int n = Math.min(MAX_NGRAM_SIZE, output.size()); n > 0; n--)
+        {
+            List<Integer> ngram = output.subList(output.size() - n, output.size());
+
+            // Search in the source (the first occurrence)
+            int index = Collections.indexOfSubList(source, ngram);
+            if (index >= 0 && index + n < source.size())
+            {
+                return source.subList(index + n, Math.min(source.size(), index + n + maxSize));
+            }
+
+            // Search in the output (the last occurrence before the actual)
+            index = Collections.lastIndexOfSubList(output.subList(0, output.size() - 1), ngram);
+            if (index >= 0)
+            {
+                return new ArrayList<>(output.subList(index + n, Math.min(output.size(), index + n + maxSize)));
+            }
+        }
+
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,413 @@
+package ai.demo.translator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Writer of a model directory with random parameters (in the same layout as the trained parameters)
+ * It can be used for benchmarks and load tests without the real parameter files: the speed of the transformer
+ * depends only on the sizes, not on the values of the parameters
+ * The tokenizer has the 256 byte tokens, the special tokens, the merges learned from a small sample text and random
+ * merges of letter sequences up to the token count (so the vocabulary and the merge table have realistic sizes)
+ * The embedding of the END-OF-TEXT token is zero, so it is never selected: the translations run until the
+ * max.output.length (or the context size), which gives a fixed output length for the load tests
+ * Usage: SyntheticModel <output-path> [hidden.size=768] [head.count=12] [encoder.count=6] [decoder.count=6]
+ *        [token.count=50265] [context.size=1024] [seed=1]
+ */
+public class SyntheticModel
+{
+    private static final String[] SPECIAL_TOKENS = {"<s>", "<pad>", "</s>", "<unk>"};
+    private static final int START_OF_TEXT_TOKEN = 0;
+    private static final int END_OF_TEXT_TOKEN = 2;
+
+    // Offset of the position embeddings (as at the BART models)
+    private static final int SPECIAL_TOKEN_OFFSET = 2;
+
+    // Maximum length of the tokens created by the random merges (in characters)
+    private static final int MAX_RANDOM_TOKEN_LENGTH = 10;
+
+    // Sample text for learning the merges of the tokenizer
+    private static final String SAMPLE_TEXT =
+            "The quick brown fox jumps over the lazy dog. A translation model converts the text of a source language " +
+            "into the text of a target language. The encoder processes the input tokens, and the decoder generates " +
+            "the output tokens one by one, attending to the encoder outputs and to the previously generated tokens. " +
+            "Numbers like 12345 or 2024, names like Alice and Bob, and addresses like https://example.com/index.html " +
+            "are often copied from the source to the translation. Large matrix multiplications dominate the runtime.";
+
+    private final int hiddenSize;
+    private final int headCount;
+    private final int encoderCount;
+    private final int decoderCount;
+    private final int tokenCount;
+    private final int contextSize;
+    private final long seed;
+
+    private final Random random;
+
+    public static void main(String... args) throws Exception
+    {
+        App.OUT = new PrintStream(System.out, true, "utf-8");
+
+        if (args == null || args.length < 1)
+        {
+            App.OUT.println("Usage: SyntheticModel <output-path> [hidden.size=768] [head.count=12] [encoder.count=6] " +
+                    "[decoder.count=6] [token.count=50265] [context.size=1024] [seed=1]");
+            return;
+        }
+
+        try
+        {
+            Map<String, String> parameters = App.readOverrides(args);
+
+            SyntheticModel model = new SyntheticModel(
+                    getIntParameter(parameters, "hidden.size", 768),
+                    getIntParameter(parameters, "head.count", 12),
+                    getIntParameter(parameters, "encoder.count", 6),
+                    getIntParameter(parameters, "decoder.count", 6),
+                    getIntParameter(parameters, "token.count", 50265),
+                    getIntParameter(parameters, "context.size", 1024),
+                    getIntParameter(parameters, "seed", 1));
+
+            App.OUT.print("Writing synthetic model to " + args[0] + "... ");
+            model.write(args[0]);
+            App.OUT.println("Done.");
+        }
+        catch (Exception e)
+        {
+            App.OUT.println("\nERROR: " + e.getMessage());
+        }
+    }
+
+    private static int getIntParameter(Map<String, String> parameters, String key, int defaultValue)
+    {
+        String value = parameters.get(key);
+        if (value == null) return defaultValue;
+
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new RuntimeException("Invalid integer parameter: " + key + "=" + value);
+        }
+    }
+
+    public SyntheticModel(int hiddenSize, int headCount, int encoderCount, int decoderCount, int tokenCount, int contextSize, long seed)
+    {
+        if (hiddenSize % headCount != 0)
+        {
+            throw new RuntimeException("The hidden size should be divisible by the head count (" + hiddenSize + ", " + headCount + ")");
+        }
+
+        if (tokenCount < 256 + SPECIAL_TOKENS.length)
+        {
+            throw new RuntimeException("The token count should be at least " + (256 + SPECIAL_TOKENS.length) + " (" + tokenCount + ")");
+        }
+
+        this.hiddenSize = hiddenSize;
+        this.headCount = headCount;
+        this.encoderCount = encoderCount;
+        this.decoderCount = decoderCount;
+        this.tokenCount = tokenCount;
+        this.contextSize = contextSize;
+        this.seed = seed;
+
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Write the model.properties, the tokenizer and the parameter files into the directory
+     */
+    public void write(String path) throws IOException
+    {
+        writeProperties(path);
+        writeTokenizer(path);
+
+        int embeddingSize = contextSize + SPECIAL_TOKEN_OFFSET;
+
+        writeTokenEmbeddings(path + "/input/wte");
+
+        for (String side : new String[] {"encoders", "decoders"})
+        {
+            writeMatrix(path + "/" + side + "/input/wpe", embeddingSize, hiddenSize);
+            writeNorm(path + "/" + side + "/input/norm");
+        }
+
+        for (int i = 1; i <= encoderCount; i++)
+        {
+            String encoderPath = path + "/encoders/encoder" + i + "/";
+
+            writeAttention(encoderPath + "att.");
+            writeMlp(encoderPath + "mlp.");
+        }
+
+        for (int i = 1; i <= decoderCount; i++)
+        {
+            String decoderPath = path + "/decoders/decoder" + i + "/";
+
+            writeAttention(decoderPath + "att.self.");
+            writeAttention(decoderPath + "att.cross.");
+            writeMlp(decoderPath + "mlp.");
+        }
+    }
+
+    private void writeProperties(String path) throws IOException
+    {
+        new File(path).mkdirs();
+
+        int scoreDividend = (int) Math.round(Math.sqrt(hiddenSize / headCount));
+
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(path + "/model.properties"), StandardCharsets.UTF_8)))
+        {
+            writer.println("# Synthetic model with random parameters");
+            writer.println("name=synthetic");
+            writer.println("token.count=" + tokenCount);
+            writer.println("start.of.text.token=" + START_OF_TEXT_TOKEN);
+            writer.println("end.of.text.token=" + END_OF_TEXT_TOKEN);
+            writer.println("special.token.offset=" + SPECIAL_TOKEN_OFFSET);
+            writer.println("context.size=" + contextSize);
+            writer.println("hidden.size=" + hiddenSize);
+            writer.println("encoder.count=" + encoderCount);
+            writer.println("encoder.attention.head.count=" + headCount);
+            writer.println("encoder.attention.score.dividend=" + scoreDividend);
+            writer.println("decoder.count=" + decoderCount);
+            writer.println("decoder.attention.head.count=" + headCount);
+            writer.println("decoder.attention.score.dividend=" + scoreDividend);
+            writer.println("epsilon=1e-5");
+            writer.println("prompt=Input:");
+        }
+    }
+
+    /**
+     * Write the tokens.map and merges.bpe files (byte pair encoding learned from the sample text, then random merges)
+     */
+    private void writeTokenizer(String path) throws IOException
+    {
+        String tokenizerPath = path + "/tokenizer";
+        new File(tokenizerPath).mkdirs();
+
+        // The bytes are represented by printable characters (the same mapping as at the Tokenizer)
+        char[] byteChars = createByteChars();
+
+        List<String> tokens = new ArrayList<>(Arrays.asList(SPECIAL_TOKENS));
+        for (char c : byteChars)
+        {
+            tokens.add(String.valueOf(c));
+        }
+
+        // Split the sample text into words (a word starts with its leading space, as at the Tokenizer)
+        List<List<String>> words = new ArrayList<>();
+        for (String word : SAMPLE_TEXT.split("(?= )"))
+        {
+            List<String> symbols = new ArrayList<>();
+            for (byte b : word.getBytes(StandardCharsets.UTF_8))
+            {
+                symbols.add(String.valueOf(byteChars[b & 0xff]));
+            }
+            words.add(symbols);
+        }
+
+        // Merge the most frequent pair repeatedly
+        List<String> merges = new ArrayList<>();
+        while (tokens.size() < tokenCount)
+        {
+            Map<String, Integer> pairCounts = new LinkedHashMap<>();
+            for (List<String> symbols : words)
+            {
+                for (int i = 0; i < symbols.size() - 1; i++)
+                {
+                    pairCounts.merge(symbols.get(i) + " " + symbols.get(i + 1), 1, Integer::sum);
+                }
+            }
+
+            String best = null;
+            for (Map.Entry<String, Integer> entry : pairCounts.entrySet())
+            {
+                if (best == null || entry.getValue() > pairCounts.get(best)) best = entry.getKey();
+            }
+
+            if (best == null) break;
+
+            String[] pair = best.split(" ");
+            merges.add(best);
+
+            // (The same token can be the result of different merges)
+            if ( ! tokens.contains(pair[0] + pair[1])) tokens.add(pair[0] + pair[1]);
+
+            for (List<String> symbols : words)
+            {
+                for (int i = 0; i < symbols.size() - 1; i++)
+                {
+                    if (symbols.get(i).equals(pair[0]) && symbols.get(i + 1).equals(pair[1]))
+                    {
+                        symbols.set(i, pair[0] + pair[1]);
+                        symbols.remove(i + 1);
+                    }
+                }
+            }
+        }
+
+        addRandomMerges(tokens, merges, byteChars[' ']);
+
+        // Every line is a "token": id pair (the format read by the Tokenizer)
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tokenizerPath + "/tokens.map"), StandardCharsets.UTF_8))
+        {
+            for (int i = 0; i < tokens.size(); i++)
+            {
+                String token = tokens.get(i).replace("\\", "\\\\").replace("\"", "\\\"");
+                writer.write("\"" + token + "\": " + i + ",\n");
+            }
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tokenizerPath + "/merges.bpe"), StandardCharsets.UTF_8))
+        {
+            for (String merge : merges)
+            {
+                writer.write(merge + "\n");
+            }
+        }
+    }
+
+    /**
+     * Add random merges until the token count is reached: a merge joins two tokens of lowercase letters (the left one
+     * can start with the space character), creating a new token of at most MAX_RANDOM_TOKEN_LENGTH characters
+     * (The earlier, shorter tokens are picked more often, so the new tokens have mixed lengths)
+     * (A separate random generator is used, so the parameters don't depend on the vocabulary)
+     */
+    private void addRandomMerges(List<String> tokens, List<String> merges, char space)
+    {
+        Random random = new Random(seed);
+
+        Set<String> tokenSet = new HashSet<>(tokens);
+
+        List<String> letterTokens = new ArrayList<>();
+        for (String token : tokens)
+        {
+            if (isLowercaseToken(token, space)) letterTokens.add(token);
+        }
+
+        while (tokens.size() < tokenCount)
+        {
+            String left = letterTokens.get(random.nextInt(random.nextInt(letterTokens.size()) + 1));
+            String right = letterTokens.get(random.nextInt(random.nextInt(letterTokens.size()) + 1));
+            String token = left + right;
+
+            if (right.charAt(0) == space || token.length() > MAX_RANDOM_TOKEN_LENGTH || tokenSet.contains(token)) continue;
+
+            merges.add(left + " " + right);
+            tokens.add(token);
+            tokenSet.add(token);
+            letterTokens.add(token);
+        }
+    }
+
+    private static boolean isLowercaseToken(String token, char space)
+    {
+        for (int i = 0; i < token.length(); i++)
+        {
+            char c = token.charAt(i);
+            if ( ! (c >= 'a' && c <= 'z') && ! (i == 0 && c == space)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * The printable character of every byte value (the same mapping as at the Tokenizer and GPT-2)
+     */
+    private static char[] createByteChars()
+    {
+        char[] chars = new char[256];
+        int next = 256;
+
+        for (int b = 0; b < 256; b++)
+        {
+            boolean isPrintable = (b >= '!' && b <= '~') || (b >= 0xa1 && b <= 0xac) || (b >= 0xae && b <= 0xff);
+            chars[b] = isPrintable ? (char) b : (char) next++;
+        }
+
+        return chars;
+    }
+
+    private void writeAttention(String prefix) throws IOException
+    {
+        for (String name : new String[] {"query", "key", "value", "proj"})
+        {
+            writeMatrix(prefix + name + ".w", hiddenSize, hiddenSize);
+            writeVector(prefix + name + ".b", hiddenSize, 0.02f, 0);
+        }
+
+        writeNorm(prefix + "norm");
+    }
+
+    private void writeMlp(String prefix) throws IOException
+    {
+        writeMatrix(prefix + "layer1.w", hiddenSize, hiddenSize * 4);
+        writeVector(prefix + "layer1.b", hiddenSize * 4, 0.02f, 0);
+        writeMatrix(prefix + "layer2.w", hiddenSize * 4, hiddenSize);
+        writeVector(prefix + "layer2.b", hiddenSize, 0.02f, 0);
+
+        writeNorm(prefix + "norm");
+    }
+
+    private void writeNorm(String prefix) throws IOException
+    {
+        writeVector(prefix + ".w", hiddenSize, 0.05f, 1);
+        writeVector(prefix + ".b", hiddenSize, 0.02f, 0);
+    }
+
+    /**
+     * Random matrix (the scale keeps the variance of the hidden states stable)
+     */
+    private void writeMatrix(String fileName, int rows, int cols) throws IOException
+    {
+        writeValues(fileName, (long) rows * cols, (float) (1 / Math.sqrt(rows)), 0);
+    }
+
+    /**
+     * Random token embeddings, except the END-OF-TEXT token (zero)
+     */
+    private void writeTokenEmbeddings(String fileName) throws IOException
+    {
+        File file = new File(fileName + ".dat");
+        file.getParentFile().mkdirs();
+
+        float scale = (float) (1 / Math.sqrt(tokenCount));
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16)))
+        {
+            for (int token = 0; token < tokenCount; token++)
+            {
+                for (int i = 0; i < hiddenSize; i++)
+                {
+                    float value = (random.nextFloat() * 2 - 1) * scale;
+                    output.writeFloat(token == END_OF_TEXT_TOKEN ? 0 : value);
+                }
+            }
+        }
+    }
+
+    private void writeVector(String fileName, int size, float scale, float base) throws IOException
+    {
+        writeValues(fileName, size, scale, base);
+    }
+
+    /**
+     * Write uniformly distributed random values (base +- scale) as big endian floats
+     */
+    private void writeValues(String fileName, long size, float scale, float base) throws IOException
+    {
+        File file = new File(fileName + ".dat");
+        file.getParentFile().mkdirs();
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16)))
+        {
+            for (long i = 0; i < size; i++)
+            {
+                output.writeFloat(base + (random.nextFloat() * 2 - 1) * scale);
+            }
+        }
+    }
+}
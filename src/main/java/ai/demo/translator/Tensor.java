@@ -0,0 +1,88 @@
+package ai.demo.translator;
+
+/**
+ * Two-dimensional tensor (matrix) stored in a single contiguous array in row-major order
+ * The stride of a row is the number of columns, so the element (row, col) is at [row * cols + col]
+ * The implementations differ in the type of the stored values (float, quantized int8, ...),
+ * the operations below are used by the matrix multiplications, converting the values to float on the fly
+ */
+public abstract class Tensor
+{
+    protected final int rows;
+    protected final int cols;
+
+    protected Tensor(int rows, int cols)
+    {
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /**
+     * Position of the first element of the row in the data array
+     */
+    public int rowOffset(int row)
+    {
+        return row * cols;
+    }
+
+    /**
+     * Copy of a row as a separate vector
+     */
+    public float[] getRow(int row)
+    {
+        float[] ret = new float[cols];
+        copyRow(row, ret);
+        return ret;
+    }
+
+    /**
+     * Copy a row into the target vector
+     */
+    public abstract void copyRow(int row, float[] target);
+
+    /**
+     * Add a row to the target vector
+     */
+    public abstract void addRow(int row, float[] target);
+
+    /**
+     * Dot product of a row and a vector
+     */
+    public float dotProductRow(int row, float[] vector)
+    {
+        return dotProductRow(row, vector, 0);
+    }
+
+    /**
+     * Dot product of a row and a vector segment (starting at the offset)
+     */
+    public abstract float dotProductRow(int row, float[] vector, int offset);
+
+    /**
+     * Add a segment of a row multiplied by a scalar to the target: target += scalar * row[col .. col + length]
+     */
+    public abstract void addScaledRow(int row, int col, float scalar, float[] target, int targetOffset, int length);
+
+    /**
+     * Multiply a block of input rows by a block of this matrix (inner rows from the given row, length columns
+     * from the given col), adding the result to the target block (see ComputeKernel.multiplyBlock)
+     */
+    public abstract void multiplyBlock(float[] input, int inputOffset, int inputStride, int rowCount,
+                                       int row, int inner, int col,
+                                       float[] target, int targetOffset, int targetStride, int length);
+
+    /**
+     * Memory used by the stored values (in bytes)
+     */
+    public abstract long getByteSize();
+
+    public int getRows()
+    {
+        return rows;
+    }
+
+    public int getCols()
+    {
+        return cols;
+    }
+}
@@ -139,6 +139,8 @@ public class Tokenizer
     {
         if (text == null) return Collections.singletonList(0);
 
+        long start = Metrics.start();
+
         List<Integer> result = new ArrayList<>();
 
         Matcher matcher = pattern.matcher(text);
@@ -171,6 +173,8 @@ public class Tokenizer
             }
         }
 
+        Metrics.record(Metrics.Stage.TOKENIZER_ENCODE, start);
+
         return result;
     }
 
@@ -179,6 +183,8 @@ public class Tokenizer
      */
     public String decode(List<Integer> tokens)
     {
+        long start = Metrics.start();
+
         StringBuilder textBuilder = new StringBuilder();
         for (int token : tokens)
         {
@@ -192,7 +198,19 @@ public class Tokenizer
             bytes[i] = charEncoding.get(text.charAt(i));
         }
 
-        return new String(bytes, StandardCharsets.UTF_8);
+        String result = new String(bytes, StandardCharsets.UTF_8);
+
+        Metrics.record(Metrics.Stage.TOKENIZER_DECODE, start);
+
+        return result;
+    }
+
+    /**
+     * Create a decoder converting the generated tokens one by one (for streaming output)
+     */
+    public IncrementalDecoder newIncrementalDecoder()
+    {
+        return new IncrementalDecoder();
     }
 
     /**
@@ -313,6 +331,77 @@ public class Tokenizer
         return minPair;
     }
 
+    /**
+     * Incremental decoding of a token stream
+     * A token can contain an incomplete part of a multi-byte UTF-8 character, these bytes are held back
+     * until the character is completed by the following tokens, so only complete characters are returned
+     */
+    public class IncrementalDecoder
+    {
+        private byte[] bytes = new byte[16];
+        private int length;
+
+        /**
+         * Add the next token, returning the completed characters (possibly empty)
+         */
+        public String decode(int token)
+        {
+            String text = tokenDecoding.get(token);
+            if (text == null) return "";
+
+            if (length + text.length() > bytes.length)
+            {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + text.length()));
+            }
+
+            for (int i = 0; i < text.length(); i++)
+            {
+                bytes[length++] = charEncoding.get(text.charAt(i));
+            }
+
+            int completeLength = findCompleteLength();
+            String result = new String(bytes, 0, completeLength, StandardCharsets.UTF_8);
+
+            // Keep the incomplete character
+            System.arraycopy(bytes, completeLength, bytes, 0, length - completeLength);
+            length = length - completeLength;
+
+            return result;
+        }
+
+        /**
+         * Finish the decoding, returning the held back bytes (an incomplete character becomes a replacement character)
+         */
+        public String finish()
+        {
+            String result = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            length = 0;
+
+            return result;
+        }
+
+        /**
+         * Number of the bytes containing complete characters (all, except an incomplete sequence at the end)
+         */
+        private int findCompleteLength()
+        {
+            // Find the first byte of the last character (the following bytes of a character are 10xxxxxx)
+            for (int i = length - 1; i >= 0 && i >= length - 4; i--)
+            {
+                int value = bytes[i] & 0xff;
+
+                if ((value & 0xc0) != 0x80)
+                {
+                    int size = value >= 0xf0 ? 4 : value >= 0xe0 ? 3 : value >= 0xc0 ? 2 : 1;
+                    return i + size > length ? i : length;
+                }
+            }
+
+            // Invalid sequence (without a first byte), it is decoded as it is
+            return length;
+        }
+    }
+
     /**
      * Holder of two string values (pair)
      */
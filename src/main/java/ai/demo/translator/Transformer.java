@@ -1,30 +1,40 @@
 package ai.demo.translator;
 
 import java.util.*;
-import static ai.demo.translator.App.OUT;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
 import static ai.demo.translator.ParameterReader.*;
 import static ai.demo.translator.TransformerUtil.*;
 
 /**
  * Encoder-decoder transformer implementation
+ * The transformer holds only the weights (never modified after the initialization), the state of a translation
+ * is in a TranslationSession, so the processTokens can be called from multiple threads at the same time
  */
 public class Transformer
 {
     private final Settings settings;
     private final Tokenizer tokenizer;
 
-    private final float[][] tokenEmbeddings;
-    private final float[][] encoderPositionEmbeddings;
+    private final Tensor tokenEmbeddings;
+    private final Tensor encoderPositionEmbeddings;
     private final float[] encoderNormWeights;
     private final float[] encoderNormBiases;
 
-    private final float[][] decoderPositionEmbeddings;
+    private final Tensor decoderPositionEmbeddings;
     private final float[] decoderNormWeights;
     private final float[] decoderNormBiases;
 
     private final TransformerEncoder[] encoders;
     private final TransformerDecoder[] decoders;
 
+    // The sessions of the finished translations (reused by the following translations, at most session.pool.size)
+    private final Queue<TranslationSession> sessionPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger sessionPoolCount = new AtomicInteger();
+
     /**
      * Initialization
      */
@@ -59,129 +69,374 @@ public class Transformer
         {
             this.decoders[i] = new TransformerDecoder(i, settings);
         }
+
+        if (settings.isMetricsEnabled()) Metrics.enable(settings.getMetricsDumpInterval());
     }
 
     /**
      * Transformer token processing logic
      * This method implements the logic how the input tokens and the new and new generated tokens are passed to the transformer
      */
-    public List<Integer> processTokens(List<Integer> inputTokens)
+    public List<Integer> processTokens(List<Integer> tokens)
     {
-        // Wrap the input between a START-OF-TEXT and END-OF-TEXT token
-        inputTokens.add(0, settings.getStartOfTextToken());
-        inputTokens.add(settings.getEndOfTextToken());
+        return generateTokens(tokens, settings.getMaxOutputLength(), token -> {});
+    }
 
-        // Process all input tokens by the encoders, it will produce a hidden state for all tokens
-        List<float[]> encoderOutputs = executeEncoderStack(inputTokens);
+    /**
+     * Token processing with a maximum output length given for this translation (instead of the max.output.length setting)
+     */
+    public List<Integer> processTokens(List<Integer> tokens, int maxOutputLength)
+    {
+        if (maxOutputLength < 1 || maxOutputLength > settings.getContextSize())
+        {
+            throw new RuntimeException("The maximum output length should be between 1 and the context size (" + settings.getContextSize() + "): " + maxOutputLength);
+        }
 
-        // Calculate the key and value vectors of the encoder outputs for all decoders
-        // (It will be used by the cross attention mechanism of the decoders)
-        for (TransformerDecoder decoder : decoders)
+        return generateTokens(tokens, maxOutputLength, token -> {});
+    }
+
+    /**
+     * Token processing with streaming output: the text of the generated tokens is passed to the textConsumer as soon as
+     * it is available (a multi-byte character split between tokens is passed when all of its bytes are generated)
+     * (The beam search selects the result at the end, so it passes the whole text at once)
+     */
+    public List<Integer> processTokens(List<Integer> tokens, Consumer<String> textConsumer)
+    {
+        return decodeText(textConsumer, tokenConsumer -> generateTokens(tokens, settings.getMaxOutputLength(), tokenConsumer));
+    }
+
+    /**
+     * Execute a token generation, passing the text of the generated tokens to the textConsumer (see processTokens)
+     */
+    List<Integer> decodeText(Consumer<String> textConsumer, Function<IntConsumer, List<Integer>> generation)
+    {
+        Tokenizer.IncrementalDecoder decoder = tokenizer.newIncrementalDecoder();
+
+        List<Integer> result = generation.apply(token ->
+        {
+            // The special tokens aren't part of the text
+            if (token != settings.getStartOfTextToken() && token != settings.getEndOfTextToken())
+            {
+                emit(decoder.decode(token), textConsumer);
+            }
+        });
+
+        emit(decoder.finish(), textConsumer);
+
+        return result;
+    }
+
+    private static void emit(String text, Consumer<String> textConsumer)
+    {
+        if ( ! text.isEmpty()) textConsumer.accept(text);
+    }
+
+    /**
+     * Generate the translation, passing the new tokens to the tokenConsumer one by one
+     */
+    private List<Integer> generateTokens(List<Integer> tokens, int maxOutputLength, IntConsumer tokenConsumer)
+    {
+        long start = Metrics.start();
+
+        // The token consumer is wrapped only if the metrics are enabled
+        List<Integer> result = decodeTokens(tokens, maxOutputLength, start != 0 ? measureTokens(start, tokenConsumer) : tokenConsumer);
+
+        Metrics.recordTranslation(start, tokens.size(), result.size());
+
+        return result;
+    }
+
+    /**
+     * Measure the time to the first token and the time between the following tokens
+     */
+    private static IntConsumer measureTokens(long start, IntConsumer tokenConsumer)
+    {
+        long[] last = {start};
+        boolean[] isFirst = {true};
+
+        return token ->
+        {
+            Metrics.record(isFirst[0] ? Metrics.Stage.TIME_TO_FIRST_TOKEN : Metrics.Stage.TOKEN_LATENCY, last[0]);
+            isFirst[0] = false;
+            last[0] = System.nanoTime();
+
+            tokenConsumer.accept(token);
+        };
+    }
+
+    private List<Integer> decodeTokens(List<Integer> tokens, int maxOutputLength, IntConsumer tokenConsumer)
+    {
+        if (settings.getBeamSize() > 1)
+        {
+            List<Integer> result = new BeamSearch(this, settings.getBeamSize(), settings.getLengthPenalty()).processTokens(tokens, maxOutputLength);
+            result.forEach(tokenConsumer::accept);
+
+            return result;
+        }
+
+        if (settings.getDraftSize() > 0)
+        {
+            return new SpeculativeDecoding(this, settings.getDraftSize()).processTokens(tokens, maxOutputLength, tokenConsumer);
+        }
+
+        TranslationSession session = acquireSession();
+
+        try
         {
-            decoder.calculateKeysAndValues(encoderOutputs);
+            return processTokens(tokens, maxOutputLength, session, tokenConsumer);
         }
+        finally
+        {
+            releaseSession(session);
+        }
+    }
+
+    private List<Integer> processTokens(List<Integer> tokens, int maxOutputLength, TranslationSession session, IntConsumer tokenConsumer)
+    {
+        // Process the input by the encoders
+        prepareTranslation(tokens, session);
 
         // Collector of the generated new tokens (translation)
         List<Integer> result = new ArrayList<>();
 
-        // Feed the decoder stack with a starting input token.
-        // (I used the START-OF-TEXT token, but it gives the same result with almost every other tokens.)
-        int token = settings.getEndOfTextToken();
+        // Feed the decoder stack with a starting input token
+        int token = getFirstDecoderToken();
 
-        for (int pos = 0; pos < settings.getContextSize(); pos++)
+        for (int pos = 0; pos < maxOutputLength; pos++)
         {
             // Feed the decoder stack with the previously generated token (or with the initial one)
-            float[] hiddenState = executeDecoderStack(pos, token, encoderOutputs);
+            float[] hiddenState = executeDecoderStack(pos, token, session);
 
             // Determine the token based on the hidden state produced by the decoder stack
-            token = selectNextToken(hiddenState);
+            token = selectNextToken(hiddenState, session.getWorkspace());
             result.add(token);
+            tokenConsumer.accept(token);
 
             // Exit if the END_OF_TEXT token was chosen
             if (token == settings.getEndOfTextToken()) break;
+        }
+
+        return result;
+    }
+
+    /**
+     * Start a translation processed by the batched decoding (see BatchScheduler)
+     * The input is processed by the encoders, the result session has to be passed to finishTranslation at the end
+     */
+    TranslationSession startTranslation(List<Integer> tokens)
+    {
+        TranslationSession session = acquireSession();
 
-            // Print the generated token - It isn't perfect, because some words or letters represented by multiple tokens
-            if (pos > 0) OUT.print(tokenizer.decode(Collections.singletonList(token)));
+        try
+        {
+            prepareTranslation(tokens, session);
+        }
+        catch (RuntimeException e)
+        {
+            releaseSession(session);
+            throw e;
         }
 
-        // Delete the stored values of the decoders
-        clear();
+        return session;
+    }
 
-        return result;
+    /**
+     * Finish a translation started by startTranslation (the session is reused by the following translations)
+     */
+    void finishTranslation(TranslationSession session)
+    {
+        releaseSession(session);
+    }
+
+    /**
+     * Start a new translation as the copy of an other one (the stored keys and values are shared, not copied)
+     * The result session has to be passed to finishTranslation at the end
+     */
+    TranslationSession forkTranslation(TranslationSession session)
+    {
+        TranslationSession ret = acquireSession();
+        ret.share(session);
+        return ret;
+    }
+
+    /**
+     * The token passed to the decoder stack at the first position
+     * (I used the START-OF-TEXT token, but it gives the same result with almost every other tokens.)
+     */
+    int getFirstDecoderToken()
+    {
+        return settings.getEndOfTextToken();
+    }
+
+    /**
+     * Process the next token of multiple translations by the decoder stack together, returning the next tokens
+     * (The position of a translation is the number of tokens already processed by the decoders)
+     */
+    int[] executeDecoderStack(TranslationSession[] sessions, int[] positions, int[] tokens)
+    {
+        FloatTensor logits = calculateLogits(sessions, positions, tokens);
+
+        int[] ret = new int[sessions.length];
+        for (int i = 0; i < sessions.length; i++)
+        {
+            ret[i] = findBest(logits.getData(), logits.rowOffset(i), logits.getCols());
+        }
+
+        return ret;
+    }
+
+    /**
+     * Process the next token of multiple translations by the decoder stack together, returning the logits of all
+     * tokens for every translation (in the rows of the result)
+     */
+    FloatTensor calculateLogits(TranslationSession[] sessions, int[] positions, int[] tokens)
+    {
+        int hiddenSize = settings.getHiddenSize();
+
+        long start = Metrics.start();
+
+        // The hidden states of the translations are the rows of a matrix
+        FloatTensor hiddenStates = new FloatTensor(sessions.length, hiddenSize);
+
+        for (int i = 0; i < sessions.length; i++)
+        {
+            float[] hiddenState = sessions[i].getWorkspace().hiddenState;
+            embedDecoderToken(positions[i], tokens[i], hiddenState);
+
+            System.arraycopy(hiddenState, 0, hiddenStates.getData(), hiddenStates.rowOffset(i), hiddenSize);
+        }
+
+        // Decoder stack
+        for (TransformerDecoder decoder : decoders)
+        {
+            hiddenStates = decoder.execute(hiddenStates, sessions);
+        }
+
+        Metrics.record(Metrics.Stage.DECODER_STEP, start);
+
+        // Multiply the outputs with all token embeddings (the embeddings are read only once for all translations)
+        start = Metrics.start();
+        FloatTensor logits = Util.multiplyMatrixByTransposedMatrix(hiddenStates, tokenEmbeddings);
+        Metrics.record(Metrics.Stage.TOKEN_SELECTION, start);
+
+        return logits;
+    }
+
+    public Settings getSettings()
+    {
+        return settings;
+    }
+
+    private void prepareTranslation(List<Integer> tokens, TranslationSession session)
+    {
+        // Wrap the input between a START-OF-TEXT and END-OF-TEXT token
+        List<Integer> inputTokens = new ArrayList<>(tokens.size() + 2);
+        inputTokens.add(settings.getStartOfTextToken());
+        inputTokens.addAll(tokens);
+        inputTokens.add(settings.getEndOfTextToken());
+
+        // Process all input tokens by the encoders, it will produce a hidden state for all tokens
+        long start = Metrics.start();
+        FloatTensor encoderOutputs = executeEncoderStack(inputTokens);
+        Metrics.record(Metrics.Stage.ENCODER_STACK, start);
+
+        // Calculate the key and value vectors of the encoder outputs for all decoders
+        // (It will be used by the cross attention mechanism of the decoders)
+        start = Metrics.start();
+        TransformerDecoder.calculateKeysAndValues(decoders, encoderOutputs, session);
+        Metrics.record(Metrics.Stage.CROSS_KEY_VALUE, start);
     }
 
-    private List<float[]> executeEncoderStack(List<Integer> inputTokens)
+    private FloatTensor executeEncoderStack(List<Integer> inputTokens)
     {
-        List<float[]> hiddenStates = new ArrayList<>(inputTokens.size());
+        // The hidden states of all tokens are processed together, as the rows of a matrix
+        FloatTensor hiddenStates = new FloatTensor(inputTokens.size(), settings.getHiddenSize());
 
         for (int pos = 0; pos < inputTokens.size(); pos++)
         {
             // Word token embedding
-            float[] hiddenState = tokenEmbeddings[inputTokens.get(pos)];
+            float[] hiddenState = tokenEmbeddings.getRow(inputTokens.get(pos));
 
             // Position embedding
-            hiddenState = Util.addVectors(hiddenState, encoderPositionEmbeddings[pos + settings.getSpecialTokenOffset()]);
+            hiddenState = Util.addVectors(hiddenState, encoderPositionEmbeddings.getRow(pos + settings.getSpecialTokenOffset()));
 
             // Initial normalization
             hiddenState = normalization(hiddenState, encoderNormWeights, encoderNormBiases, settings.getEpsilon());
 
-            hiddenStates.add(hiddenState);
+            System.arraycopy(hiddenState, 0, hiddenStates.getData(), hiddenStates.rowOffset(pos), hiddenState.length);
         }
 
         // Encoder stack
         for (TransformerEncoder encoder : encoders)
         {
-            for (int i = 0; i < inputTokens.size(); i++)
-            {
-                encoder.calculateKeysAndValues(hiddenStates.get(i));
-            }
-
-            for (int i = 0; i < inputTokens.size(); i++)
-            {
-                hiddenStates.set(i, encoder.execute(hiddenStates.get(i), hiddenStates.get(i)));
-            }
-
-            encoder.clear();
+            hiddenStates = encoder.execute(hiddenStates);
         }
 
         return hiddenStates;
     }
 
-    private float[] executeDecoderStack(int pos, int token, List<float[]> encoderOutput)
+    private float[] executeDecoderStack(int pos, int token, TranslationSession session)
     {
-        // Word token embedding
-        float[] hiddenState = tokenEmbeddings[token];
+        long start = Metrics.start();
 
-        // Position embedding
-        hiddenState = Util.addVectors(hiddenState, decoderPositionEmbeddings[pos + settings.getSpecialTokenOffset()]);
-
-        // Initial normalization
-        hiddenState = normalization(hiddenState, decoderNormWeights, decoderNormBiases, settings.getEpsilon());
+        float[] hiddenState = session.getWorkspace().hiddenState;
+        embedDecoderToken(pos, token, hiddenState);
 
         // Decoder stack
         for (TransformerDecoder decoder : decoders)
         {
-            hiddenState = decoder.execute(hiddenState, encoderOutput);
+            decoder.execute(hiddenState, session);
         }
 
+        Metrics.record(Metrics.Stage.DECODER_STEP, start);
+
         return hiddenState;
     }
 
-    private int selectNextToken(float[] output)
+    private void embedDecoderToken(int pos, int token, float[] hiddenState)
+    {
+        // Word token embedding
+        tokenEmbeddings.copyRow(token, hiddenState);
+
+        // Position embedding
+        decoderPositionEmbeddings.addRow(pos + settings.getSpecialTokenOffset(), hiddenState);
+
+        // Initial normalization
+        normalization(hiddenState, decoderNormWeights, decoderNormBiases, settings.getEpsilon(), hiddenState);
+    }
+
+    private int selectNextToken(float[] output, Workspace workspace)
     {
         // Multiply (dot product) the output with all token embeddings.
         // It will give a higher value if the output is more similar to the token embedding
-        float[] logits = Util.multiplyVectorByTransposedMatrix(output, tokenEmbeddings);
+        // The index of the highest logit is searched in the same pass (split between the threads by the vocabulary rows)
+        long start = Metrics.start();
+        int token = Util.multiplyVectorByTransposedMatrixAndFindMax(output, tokenEmbeddings, workspace.logits);
+        Metrics.record(Metrics.Stage.TOKEN_SELECTION, start);
 
-        // Find the index of the highest logit
-        return findBest(logits);
+        return token;
     }
 
-    private void clear()
+    private TranslationSession acquireSession()
     {
-        for (TransformerDecoder decoder : decoders)
+        TranslationSession session = sessionPool.poll();
+        if (session == null) return new TranslationSession(settings);
+
+        sessionPoolCount.decrementAndGet();
+        return session;
+    }
+
+    private void releaseSession(TranslationSession session)
+    {
+        // Above the pool size the session is dropped, so the memory of a burst of translations isn't kept forever
+        if (sessionPoolCount.incrementAndGet() > settings.getSessionPoolSize())
         {
-            decoder.clear();
+            sessionPoolCount.decrementAndGet();
+            return;
         }
+
+        // Delete the stored values of the translation, but keep the allocated memory for the next one
+        session.clear();
+        sessionPool.add(session);
     }
 }
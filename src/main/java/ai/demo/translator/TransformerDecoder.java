@@ -1,273 +1,291 @@
 package ai.demo.translator;
 
-import java.util.ArrayList;
-import java.util.List;
 import static ai.demo.translator.ParameterReader.*;
 import static ai.demo.translator.TransformerUtil.*;
 
 /**
  * Decoder implementation for a decoder-only transformer
+ * The decoder holds only the weights (immutable), the stored keys and values are in the translation session
  */
 public class TransformerDecoder
 {
+    private final int decoderId;
     private final Settings settings;
 
-    private final float[][] selfQueryWeights;
-    private final float[] selfQueryBiases;
-    private final float[][] selfKeyWeights;
-    private final float[] selfKeyBiases;
-    private final float[][] selfValueWeights;
-    private final float[] selfValueBiases;
-    private final float[][] selfProjectionWeights;
+    private final Tensor selfQueryKeyValueWeights;
+    private final float[] selfQueryKeyValueBiases;
+    private final Tensor selfProjectionWeights;
     private final float[] selfProjectionBiases;
     private final float[] selfNormWeights;
     private final float[] selfNormBiases;
 
-    private final float[][] crossQueryWeights;
+    private final Tensor crossQueryWeights;
     private final float[] crossQueryBiases;
-    private final float[][] crossKeyWeights;
-    private final float[] crossKeyBiases;
-    private final float[][] crossValueWeights;
-    private final float[] crossValueBiases;
-    private final float[][] crossProjectionWeights;
+    private final Tensor crossKeyValueWeights;
+    private final float[] crossKeyValueBiases;
+    private final Tensor crossProjectionWeights;
     private final float[] crossProjectionBiases;
     private final float[] crossNormWeights;
     private final float[] crossNormBiases;
 
-    private final float[][] mlpLayer1Weights;
+    private final Tensor mlpLayer1Weights;
     private final float[] mlpLayer1Biases;
-    private final float[][] mlpLayer2Weights;
+    private final Tensor mlpLayer2Weights;
     private final float[] mlpLayer2Biases;
     private final float[] mlpNormWeights;
     private final float[] mlpNormBiases;
 
-    private final List<float[][]> storedSelfKeys = new ArrayList<>();
-    private final List<float[][]> storedSelfValues = new ArrayList<>();
-
-    private final List<float[][]> storedCrossKeys = new ArrayList<>();
-    private final List<float[][]> storedCrossValues = new ArrayList<>();
-
     /**
      * Initialization
      */
     public TransformerDecoder(int decoderId, Settings settings)
     {
+        this.decoderId = decoderId;
         this.settings = settings;
 
         String path = settings.getPath() + "/decoders/decoder" + (decoderId + 1);
         int hiddenSize = settings.getHiddenSize();
-
-        this.selfQueryWeights = readMatrixFile(path, "att.self.query.w", hiddenSize, hiddenSize);
-        this.selfQueryBiases = readVectorFile(path, "att.self.query.b", hiddenSize, settings.hasAttentionQueryBias());
-        this.selfKeyWeights = readMatrixFile(path, "att.self.key.w", hiddenSize, hiddenSize);
-        this.selfKeyBiases = readVectorFile(path, "att.self.key.b", hiddenSize, settings.hasAttentionKeyBias());
-        this.selfValueWeights = readMatrixFile(path, "att.self.value.w", hiddenSize, hiddenSize);
-        this.selfValueBiases = readVectorFile(path, "att.self.value.b", hiddenSize, settings.hasAttentionValueBias());
-        this.selfProjectionWeights = readMatrixFile(path, "att.self.proj.w", hiddenSize, hiddenSize);
+        WeightFormat format = settings.getWeightFormat();
+
+        // The self attention query, key and value weights are packed into a single [hidden x 3*hidden] matrix
+        this.selfQueryKeyValueWeights = readMatrixFiles(path,
+                new String[] {"att.self.query.w", "att.self.key.w", "att.self.value.w"}, hiddenSize, hiddenSize, format);
+        this.selfQueryKeyValueBiases = readVectorFiles(path,
+                new String[] {"att.self.query.b", "att.self.key.b", "att.self.value.b"}, hiddenSize,
+                new boolean[] {settings.hasAttentionQueryBias(), settings.hasAttentionKeyBias(), settings.hasAttentionValueBias()});
+        this.selfProjectionWeights = readMatrixFile(path, "att.self.proj.w", hiddenSize, hiddenSize, format);
         this.selfProjectionBiases = readVectorFile(path, "att.self.proj.b", hiddenSize, settings.hasAttentionProjectionBias());
         this.selfNormWeights = readVectorFile(path, "att.self.norm.w", hiddenSize);
         this.selfNormBiases = readVectorFile(path, "att.self.norm.b", hiddenSize);
 
-        this.crossQueryWeights = readMatrixFile(path, "att.cross.query.w", hiddenSize, hiddenSize);
+        this.crossQueryWeights = readMatrixFile(path, "att.cross.query.w", hiddenSize, hiddenSize, format);
         this.crossQueryBiases = readVectorFile(path, "att.cross.query.b", hiddenSize, settings.hasAttentionQueryBias());
-        this.crossKeyWeights = readMatrixFile(path, "att.cross.key.w", hiddenSize, hiddenSize);
-        this.crossKeyBiases = readVectorFile(path, "att.cross.key.b", hiddenSize, settings.hasAttentionKeyBias());
-        this.crossValueWeights = readMatrixFile(path, "att.cross.value.w", hiddenSize, hiddenSize);
-        this.crossValueBiases = readVectorFile(path, "att.cross.value.b", hiddenSize, settings.hasAttentionValueBias());
-        this.crossProjectionWeights = readMatrixFile(path, "att.cross.proj.w", hiddenSize, hiddenSize);
+        // The cross attention key and value weights are packed into a single [hidden x 2*hidden] matrix
+        // (The query is calculated from the decoder state, so it can't be merged with these)
+        this.crossKeyValueWeights = readMatrixFiles(path,
+                new String[] {"att.cross.key.w", "att.cross.value.w"}, hiddenSize, hiddenSize, format);
+        this.crossKeyValueBiases = readVectorFiles(path,
+                new String[] {"att.cross.key.b", "att.cross.value.b"}, hiddenSize,
+                new boolean[] {settings.hasAttentionKeyBias(), settings.hasAttentionValueBias()});
+        this.crossProjectionWeights = readMatrixFile(path, "att.cross.proj.w", hiddenSize, hiddenSize, format);
         this.crossProjectionBiases = readVectorFile(path, "att.cross.proj.b", hiddenSize, settings.hasAttentionProjectionBias());
         this.crossNormWeights = readVectorFile(path, "att.cross.norm.w", hiddenSize);
         this.crossNormBiases = readVectorFile(path, "att.cross.norm.b", hiddenSize);
 
-        this.mlpLayer1Weights = readMatrixFile(path, "mlp.layer1.w", hiddenSize, hiddenSize * 4);
+        this.mlpLayer1Weights = readMatrixFile(path, "mlp.layer1.w", hiddenSize, hiddenSize * 4, format);
         this.mlpLayer1Biases = readVectorFile(path, "mlp.layer1.b", hiddenSize * 4, settings.hasMlpLayer1Bias());
-        this.mlpLayer2Weights = readMatrixFile(path, "mlp.layer2.w", hiddenSize * 4, hiddenSize);
+        this.mlpLayer2Weights = readMatrixFile(path, "mlp.layer2.w", hiddenSize * 4, hiddenSize, format);
         this.mlpLayer2Biases = readVectorFile(path, "mlp.layer2.b", hiddenSize, settings.hasMlpLayer2Bias());
         this.mlpNormWeights = readVectorFile(path, "mlp.norm.w", hiddenSize);
         this.mlpNormBiases = readVectorFile(path, "mlp.norm.b", hiddenSize);
     }
 
     /**
-     * Calculate keys ans values for all encoder outputs
+     * Calculate keys and values of the encoder outputs for all decoders (stored in the cross caches of the session)
+     * (The multiplications of all decoders are done together, so the threads share the work of all decoders)
      */
-    public void calculateKeysAndValues(List<float[]> encoderOutputs)
+    public static void calculateKeysAndValues(TransformerDecoder[] decoders, FloatTensor encoderOutputs, TranslationSession session)
     {
-        for (float[] encoderOutput : encoderOutputs)
+        Tensor[] weights = new Tensor[decoders.length];
+        float[][] biases = new float[decoders.length][];
+
+        for (int i = 0; i < decoders.length; i++)
         {
-            float[] key = applyWeight(encoderOutput, crossKeyWeights, crossKeyBiases);
-            float[] value = applyWeight(encoderOutput, crossValueWeights, crossValueBiases);
+            weights[i] = decoders[i].crossKeyValueWeights;
+            biases[i] = decoders[i].crossKeyValueBiases;
+        }
 
-            // Split the query, key and value vectors into pieces for all heads
-            float[][] keys = Util.splitVector(key, settings.getDecoderHeadCount());
-            float[][] values = Util.splitVector(value, settings.getDecoderHeadCount());
+        FloatTensor[] keyValues = applyWeights(encoderOutputs, weights, biases);
 
-            // Store the keys and values (these will be available while the following tokens will be processed)
-            storedCrossKeys.add(keys);
-            storedCrossValues.add(values);
+        // Store the keys and values (these will be available while the following tokens will be processed)
+        for (int i = 0; i < decoders.length; i++)
+        {
+            session.getCrossCache(decoders[i].decoderId).addAll(keyValues[i]);
         }
     }
 
     /**
      * Decoder logic
+     * The hidden state is updated in place, all temporary vectors are taken from the workspace of the session
      */
-    public float[] execute(float[] hiddenState, List<float[]> encoderOutput)
+    public void execute(float[] hiddenState, TranslationSession session)
     {
+        Workspace workspace = session.getWorkspace();
+
         // Self attention block
-        hiddenState = selfAttentionBlock(hiddenState);
+        selfAttention(hiddenState, workspace, session.getSelfCache(decoderId));
+        residualAndNormalization(hiddenState, workspace.output, selfNormWeights, selfNormBiases);
 
         // Cross-attention block
-        hiddenState = crossAttentionBlock(hiddenState, encoderOutput);
+        crossAttention(hiddenState, workspace, session.getCrossCache(decoderId));
+        residualAndNormalization(hiddenState, workspace.output, crossNormWeights, crossNormBiases);
 
         // Neuron layers
-        return neuronBlock(hiddenState);
+        neuronLayers(hiddenState, workspace);
+        residualAndNormalization(hiddenState, workspace.output, mlpNormWeights, mlpNormBiases);
     }
 
-    private float[] selfAttentionBlock(float[] inputHiddenState)
+    /**
+     * Decoder logic for multiple translations together (the rows of the hidden states belong to the sessions)
+     * The weights are applied on all rows in a single matrix by matrix multiplication, so the weights are read
+     * from the memory only once for the whole batch, only the attention is calculated separately for every session
+     */
+    public FloatTensor execute(FloatTensor hiddenStates, TranslationSession[] sessions)
     {
-        // Attention layer
-        float[] hiddenState = selfAttention(inputHiddenState);
+        // Self attention block
+        FloatTensor output = selfAttention(hiddenStates, sessions);
+        hiddenStates = residualAndNormalization(hiddenStates, output, selfNormWeights, selfNormBiases);
 
-        // Add the original input state to the actual (residual connection)
-        hiddenState = Util.addVectors(hiddenState, inputHiddenState);
+        // Cross-attention block
+        output = crossAttention(hiddenStates, sessions);
+        hiddenStates = residualAndNormalization(hiddenStates, output, crossNormWeights, crossNormBiases);
 
-        // Normalization
-        return normalization(hiddenState, selfNormWeights, selfNormBiases, settings.getEpsilon());
+        // Neuron layers
+        output = neuronLayers(hiddenStates);
+        return residualAndNormalization(hiddenStates, output, mlpNormWeights, mlpNormBiases);
     }
 
-    private float[] crossAttentionBlock(float[] inputHiddenState, List<float[]> encoderOutput)
+    private FloatTensor residualAndNormalization(FloatTensor hiddenStates, FloatTensor output, float[] normWeights, float[] normBiases)
     {
-        // Attention layer
-        float[] hiddenState = crossAttention(inputHiddenState, encoderOutput);
-
         // Add the original input state to the actual (residual connection)
-        hiddenState = Util.addVectors(hiddenState, inputHiddenState);
+        output = Util.addMatrices(output, hiddenStates);
 
-        // Normalization
-        return normalization(hiddenState, crossNormWeights, crossNormBiases, settings.getEpsilon());
+        // Normalization (the result is the new hidden state)
+        return normalization(output, normWeights, normBiases, settings.getEpsilon());
     }
 
-    private float[] neuronBlock(float[] inputHiddenState)
+    private void residualAndNormalization(float[] hiddenState, float[] output, float[] normWeights, float[] normBiases)
     {
-        // Neuron layers
-        float[] hiddenState = neuronLayers(inputHiddenState);
-
         // Add the original input state to the actual (residual connection)
-        hiddenState = Util.addVectors(hiddenState, inputHiddenState);
+        Util.addVectors(output, hiddenState, output);
 
-        // Normalization
-        return normalization(hiddenState, mlpNormWeights, mlpNormBiases, settings.getEpsilon());
+        // Normalization (the result is the new hidden state)
+        normalization(output, normWeights, normBiases, settings.getEpsilon(), hiddenState);
     }
 
-    private float[] selfAttention(float[] hiddenState)
+    private void selfAttention(float[] hiddenState, Workspace workspace, KeyValueCache selfCache)
     {
-        // Calculate the query, key and value vectors for the actual token:
-        float[] query = applyWeight(hiddenState, selfQueryWeights, selfQueryBiases);
-        float[] key = applyWeight(hiddenState, selfKeyWeights, selfKeyBiases);
-        float[] value = applyWeight(hiddenState, selfValueWeights, selfValueBiases);
-
-        // Split the query, key and value vectors into pieces for all heads
-        float[][] queries = Util.splitVector(query, settings.getDecoderHeadCount());
-        float[][] keys = Util.splitVector(key, settings.getDecoderHeadCount());
-        float[][] values = Util.splitVector(value, settings.getDecoderHeadCount());
-
-        // Store the keys and values (these will be available while the following tokens will be processed)
-        storedSelfKeys.add(keys);
-        storedSelfValues.add(values);
+        // Calculate the query, key and value vectors for the actual token in a single multiplication
+        // (The result contains the query, the key and the value vector next to each other)
+        float[] queryKeyValue = workspace.queryKeyValue;
+        applyWeight(hiddenState, selfQueryKeyValueWeights, selfQueryKeyValueBiases, queryKeyValue);
 
-        float[][] sums = new float[settings.getDecoderHeadCount()][settings.getHiddenSize() / settings.getDecoderHeadCount()];
+        // Store the key and value (these will be available while the following tokens will be processed)
+        selfCache.add(queryKeyValue, settings.getHiddenSize());
 
         // Scoring the previous tokens (including the actual), separately for all heads
         // Again: we have to score not only the previous, but the actual token as well
         // That is the reason of that we already added the actual key/value to the stored keys/values
-        for (int head = 0; head < settings.getDecoderHeadCount(); head++)
-        {
-            // Calculate the scores
-            float[] scores = new float[storedSelfKeys.size()];
-            for (int pos = 0; pos < storedSelfKeys.size(); pos++)
-            {
-                // The score is calculated multiplying the "actual" query vector and the "related" key vector
-                scores[pos] = Util.dotProduct(queries[head], storedSelfKeys.get(pos)[head]) / settings.getDecoderScoreDividend();
-            }
-
-            // Softmax
-            scores = softmax(scores);
-
-            // Multiply the value matrices with the scores, and sum up
-            for (int pos = 0; pos < storedSelfKeys.size(); pos++)
-            {
-                float[] sum = Util.multiplyVectorByScalar(storedSelfValues.get(pos)[head], scores[pos]);
-                sums[head] = Util.addVectors(sums[head], sum);
-            }
-        }
-
-        // Concatenate the results for all heads
-        float[] flatSums = Util.flattenMatrix(sums);
+        attention(queryKeyValue, 0, selfCache, workspace.attention, 0, workspace.attentionState);
 
         // Apply the attention projection weights and biases
-        return applyWeight(flatSums, selfProjectionWeights, selfProjectionBiases);
+        applyWeight(workspace.attention, selfProjectionWeights, selfProjectionBiases, workspace.output);
     }
 
-    private float[] crossAttention(float[] hiddenState, List<float[]> encoderOutput)
+    private void crossAttention(float[] hiddenState, Workspace workspace, KeyValueCache crossCache)
     {
         // Calculate the query vector for the actual token:
-        float[] query = applyWeight(hiddenState, crossQueryWeights, crossQueryBiases);
+        applyWeight(hiddenState, crossQueryWeights, crossQueryBiases, workspace.query);
+
+        // Scoring the encoder outputs, separately for all heads
+        attention(workspace.query, 0, crossCache, workspace.attention, 0, workspace.attentionState);
 
-        // Split the query vector into pieces for all heads
-        float[][] queries = Util.splitVector(query, settings.getDecoderHeadCount());
+        // Apply the attention projection weights and biases
+        applyWeight(workspace.attention, crossProjectionWeights, crossProjectionBiases, workspace.output);
+    }
 
-        float[][] sums = new float[settings.getDecoderHeadCount()][settings.getHiddenSize() / settings.getDecoderHeadCount()];
+    private void attention(float[] query, int queryOffset, KeyValueCache cache, float[] target, int targetOffset,
+                           float[] state)
+    {
+        int headSize = cache.getHeadSize();
 
-        // Scoring the encoder outputs, separately for all heads
         for (int head = 0; head < settings.getDecoderHeadCount(); head++)
         {
-            // Calculate the scores
-            float[] scores = new float[storedCrossKeys.size()];
-            for (int pos = 0; pos < encoderOutput.size(); pos++)
-            {
-                // The score is calculated multiplying the "actual" query vector and the "related" key vector
-                scores[pos] = Util.dotProduct(queries[head], storedCrossKeys.get(pos)[head]) / settings.getDecoderScoreDividend();
-            }
+            // The vectors of the heads are the consecutive segments of the query vector
+            // (The results of the heads are concatenated, written next to each other)
+            int headOffset = head * headSize;
 
-            // Softmax
-            scores = softmax(scores);
+            startAttentionHead(target, targetOffset + headOffset, headSize, state);
 
-            // Multiply the value matrices with the scores, and sum up
-            for (int pos = 0; pos < encoderOutput.size(); pos++)
+            // The keys and values of a head are stored in a contiguous segment of every block of the cache
+            for (int block = 0; block < cache.getBlockCount(); block++)
             {
-                float[] sum = Util.multiplyVectorByScalar(storedCrossValues.get(pos)[head], scores[pos]);
-                sums[head] = Util.addVectors(sums[head], sum);
+                int cacheOffset = cache.offset(head, 0);
+
+                attentionSegment(query, queryOffset + headOffset, cache.getBlockKeys(block), cacheOffset,
+                        cache.getBlockValues(block), cacheOffset, headSize, cache.getBlockSize(block), headSize,
+                        settings.getDecoderScoreDividend(), target, targetOffset + headOffset, state);
             }
+
+            finishAttentionHead(target, targetOffset + headOffset, headSize, state);
         }
+    }
+
+    private FloatTensor selfAttention(FloatTensor hiddenStates, TranslationSession[] sessions)
+    {
+        // Calculate the query, key and value vectors for the actual tokens of all sessions
+        FloatTensor queryKeyValues = applyWeight(hiddenStates, selfQueryKeyValueWeights, selfQueryKeyValueBiases);
+        float[] data = queryKeyValues.getData();
 
-        // Concatenate the results for all heads
-        float[] flatSums = Util.flattenMatrix(sums);
+        FloatTensor sums = new FloatTensor(hiddenStates.getRows(), settings.getHiddenSize());
+
+        for (int i = 0; i < sessions.length; i++)
+        {
+            // Store the key and value, then score the previous tokens (including the actual) of the session
+            KeyValueCache selfCache = sessions[i].getSelfCache(decoderId);
+            selfCache.add(data, queryKeyValues.rowOffset(i) + settings.getHiddenSize());
+
+            attention(data, queryKeyValues.rowOffset(i), selfCache, sums.getData(), sums.rowOffset(i),
+                    sessions[i].getWorkspace().attentionState);
+        }
 
         // Apply the attention projection weights and biases
-        return applyWeight(flatSums, crossProjectionWeights, crossProjectionBiases);
+        return applyWeight(sums, selfProjectionWeights, selfProjectionBiases);
     }
 
-    private float[] neuronLayers(float[] hiddenState)
+    private FloatTensor crossAttention(FloatTensor hiddenStates, TranslationSession[] sessions)
+    {
+        // Calculate the query vectors for the actual tokens of all sessions
+        FloatTensor queries = applyWeight(hiddenStates, crossQueryWeights, crossQueryBiases);
+
+        FloatTensor sums = new FloatTensor(hiddenStates.getRows(), settings.getHiddenSize());
+
+        for (int i = 0; i < sessions.length; i++)
+        {
+            // Scoring the encoder outputs of the session
+            attention(queries.getData(), queries.rowOffset(i), sessions[i].getCrossCache(decoderId),
+                    sums.getData(), sums.rowOffset(i), sessions[i].getWorkspace().attentionState);
+        }
+
+        // Apply the attention projection weights and biases
+        return applyWeight(sums, crossProjectionWeights, crossProjectionBiases);
+    }
+
+    private void neuronLayers(float[] hiddenState, Workspace workspace)
     {
         // Layer 1: <hiddenSize> * 4 neurons (using a gelu activation function)
-        hiddenState = applyWeight(hiddenState, mlpLayer1Weights, mlpLayer1Biases);
-        for (int neuron = 0; neuron < settings.getHiddenSize() * 4; neuron++)
+        float[] neurons = workspace.neurons;
+        applyWeight(hiddenState, mlpLayer1Weights, mlpLayer1Biases, neurons);
+        for (int neuron = 0; neuron < neurons.length; neuron++)
         {
-            hiddenState[neuron] = gelu(hiddenState[neuron]);
+            neurons[neuron] = gelu(neurons[neuron]);
         }
 
         // Layer 2: <hiddenSize> neurons (without activation function)
-        return applyWeight(hiddenState, mlpLayer2Weights, mlpLayer2Biases);
+        applyWeight(neurons, mlpLayer2Weights, mlpLayer2Biases, workspace.output);
     }
 
-    /**
-     * Clear the stored values after finishing the translation
-     */
-    public void clear()
+    private FloatTensor neuronLayers(FloatTensor hiddenStates)
     {
-        storedSelfKeys.clear();
-        storedSelfValues.clear();
+        // Layer 1: <hiddenSize> * 4 neurons (using a gelu activation function)
+        hiddenStates = applyWeight(hiddenStates, mlpLayer1Weights, mlpLayer1Biases);
+        float[] data = hiddenStates.getData();
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = gelu(data[i]);
+        }
 
-        storedCrossKeys.clear();
-        storedCrossValues.clear();
+        // Layer 2: <hiddenSize> neurons (without activation function)
+        return applyWeight(hiddenStates, mlpLayer2Weights, mlpLayer2Biases);
     }
 }
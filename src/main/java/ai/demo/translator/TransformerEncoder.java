@@ -1,34 +1,26 @@
 package ai.demo.translator;
 
-import java.util.ArrayList;
-import java.util.List;
 import static ai.demo.translator.ParameterReader.*;
 import static ai.demo.translator.TransformerUtil.*;
 
 /**
- * Decoder implementation for a decoder-only transformer
+ * Encoder implementation for an encoder-decoder transformer
  */
 public class TransformerEncoder
 {
     private final Settings settings;
-    private final float[][] queryWeights;
-    private final float[] queryBiases;
-    private final float[][] keyWeights;
-    private final float[] keyBiases;
-    private final float[][] valueWeights;
-    private final float[] valueBiases;
-    private final float[][] projectionWeights;
+    private final Tensor queryKeyValueWeights;
+    private final float[] queryKeyValueBiases;
+    private final Tensor projectionWeights;
     private final float[] projectionBiases;
     private final float[] attNormWeights;
     private final float[] attNormBiases;
-    private final float[][] mlpLayer1Weights;
+    private final Tensor mlpLayer1Weights;
     private final float[] mlpLayer1Biases;
-    private final float[][] mlpLayer2Weights;
+    private final Tensor mlpLayer2Weights;
     private final float[] mlpLayer2Biases;
     private final float[] mlpNormWeights;
     private final float[] mlpNormBiases;
-    private final List<float[][]> storedKeys = new ArrayList<>();
-    private final List<float[][]> storedValues = new ArrayList<>();
 
     /**
      * Initialization
@@ -39,126 +31,110 @@ public class TransformerEncoder
 
         String path = settings.getPath() + "/encoders/encoder" + (encoderId + 1);
         int hiddenSize = settings.getHiddenSize();
-
-        this.queryWeights = readMatrixFile(path, "att.query.w", hiddenSize, hiddenSize);
-        this.queryBiases = readVectorFile(path, "att.query.b", hiddenSize, settings.hasAttentionQueryBias());
-        this.keyWeights = readMatrixFile(path, "att.key.w", hiddenSize, hiddenSize);
-        this.keyBiases = readVectorFile(path, "att.key.b", hiddenSize, settings.hasAttentionKeyBias());
-        this.valueWeights = readMatrixFile(path, "att.value.w", hiddenSize, hiddenSize);
-        this.valueBiases = readVectorFile(path, "att.value.b", hiddenSize, settings.hasAttentionValueBias());
-        this.projectionWeights = readMatrixFile(path, "att.proj.w", hiddenSize, hiddenSize);
+        WeightFormat format = settings.getWeightFormat();
+
+        // The query, key and value weights are packed into a single [hidden x 3*hidden] matrix
+        this.queryKeyValueWeights = readMatrixFiles(path, new String[] {"att.query.w", "att.key.w", "att.value.w"},
+                hiddenSize, hiddenSize, format);
+        this.queryKeyValueBiases = readVectorFiles(path, new String[] {"att.query.b", "att.key.b", "att.value.b"},
+                hiddenSize, new boolean[] {settings.hasAttentionQueryBias(), settings.hasAttentionKeyBias(), settings.hasAttentionValueBias()});
+        this.projectionWeights = readMatrixFile(path, "att.proj.w", hiddenSize, hiddenSize, format);
         this.projectionBiases = readVectorFile(path, "att.proj.b", hiddenSize, settings.hasAttentionProjectionBias());
         this.attNormWeights = readVectorFile(path, "att.norm.w", hiddenSize);
         this.attNormBiases = readVectorFile(path, "att.norm.b", hiddenSize);
-        this.mlpLayer1Weights = readMatrixFile(path, "mlp.layer1.w", hiddenSize, hiddenSize * 4);
+        this.mlpLayer1Weights = readMatrixFile(path, "mlp.layer1.w", hiddenSize, hiddenSize * 4, format);
         this.mlpLayer1Biases = readVectorFile(path, "mlp.layer1.b", hiddenSize * 4, settings.hasMlpLayer1Bias());
-        this.mlpLayer2Weights = readMatrixFile(path, "mlp.layer2.w", hiddenSize * 4, hiddenSize);
+        this.mlpLayer2Weights = readMatrixFile(path, "mlp.layer2.w", hiddenSize * 4, hiddenSize, format);
         this.mlpLayer2Biases = readVectorFile(path, "mlp.layer2.b", hiddenSize, settings.hasMlpLayer2Bias());
         this.mlpNormWeights = readVectorFile(path, "mlp.norm.w", hiddenSize);
         this.mlpNormBiases = readVectorFile(path, "mlp.norm.b", hiddenSize);
     }
 
     /**
-     * Decoder logic
+     * Encoder logic
+     * All tokens are processed together, the hidden states are the rows of the matrix (one row for every token)
      */
-    public void calculateKeysAndValues(float[] hiddenState)
-    {
-        // Calculate the key and value vectors for the actual token:
-        float[] key = applyWeight(hiddenState, keyWeights, keyBiases);
-        float[] value = applyWeight(hiddenState, valueWeights, valueBiases);
-
-        // Split the key and value vectors into pieces for all heads
-        float[][] keys = Util.splitVector(key, settings.getEncoderHeadCount());
-        float[][] values = Util.splitVector(value, settings.getEncoderHeadCount());
-
-        // Store the keys and values (these will be available while the following tokens will be processed)
-        storedKeys.add(keys);
-        storedValues.add(values);
-    }
-
-    public float[] execute(float[] hiddenState, float[] inputHiddenState)
+    public FloatTensor execute(FloatTensor inputHiddenStates)
     {
         // Attention block
-        hiddenState = attention(hiddenState);
+        FloatTensor hiddenStates = attention(inputHiddenStates);
 
         // Add the original input state to the actual (residual connection)
-        hiddenState = Util.addVectors(hiddenState, inputHiddenState);
+        hiddenStates = Util.addMatrices(hiddenStates, inputHiddenStates);
 
-        hiddenState = normalization(hiddenState, attNormWeights, attNormBiases, settings.getEpsilon());
+        hiddenStates = normalization(hiddenStates, attNormWeights, attNormBiases, settings.getEpsilon());
 
         // Neuron layers
-        return neuronBlock(hiddenState);
+        return neuronBlock(hiddenStates);
     }
 
-    private float[] attention(float[] hiddenState)
+    private FloatTensor attention(FloatTensor hiddenStates)
     {
-        float[] query = applyWeight(hiddenState, queryWeights, queryBiases);
-        float[][] queries = Util.splitVector(query, settings.getEncoderHeadCount());
+        // Calculate the query, key and value vectors for all tokens in a single multiplication
+        // (Every row contains the query, the key and the value vector of the token next to each other)
+        FloatTensor queryKeyValues = applyWeight(hiddenStates, queryKeyValueWeights, queryKeyValueBiases);
+        float[] data = queryKeyValues.getData();
 
-        float[][] sums = new float[settings.getEncoderHeadCount()][settings.getHiddenSize() / settings.getEncoderHeadCount()];
+        int tokenCount = hiddenStates.getRows();
+        int hiddenSize = settings.getHiddenSize();
+        int headCount = settings.getEncoderHeadCount();
+        int headSize = hiddenSize / headCount;
 
-        // Scoring the previous tokens (including the actual), separately for all heads
-        // Again: we have to score not only the previous, but the actual token as well
-        // That is the reason of that we already added the actual key/value to the stored keys/values
-        for (int head = 0; head < settings.getEncoderHeadCount(); head++)
-        {
-            // Calculate the scores
-            float[] scores = new float[storedKeys.size()];
-            for (int pos = 0; pos < storedKeys.size(); pos++)
-            {
-                // The score is calculated multiplying the "actual" query vector and the "related" key vector
-                scores[pos] = Util.dotProduct(queries[head], storedKeys.get(pos)[head]) / settings.getEncoderScoreDividend();
-            }
+        int keyOffset = hiddenSize;
+        int valueOffset = hiddenSize * 2;
 
-            // Softmax
-            scores = softmax(scores);
+        FloatTensor sums = new FloatTensor(tokenCount, hiddenSize);
+        float[] sumData = sums.getData();
 
-            // Multiply the value matrices with the scores, and sum up
-            for (int pos = 0; pos < storedKeys.size(); pos++)
+        // The tokens are independent (every token attends to all tokens), so these can be processed in parallel
+        Util.executeInChunks(tokenCount, (long) tokenCount * tokenCount * hiddenSize * 2, (from, to) ->
+        {
+            // The chunks run on different threads, so every chunk has its own attention state
+            float[] state = new float[ATTENTION_STATE_SIZE];
+
+            for (int token = from; token < to; token++)
             {
-                float[] sum = Util.multiplyVectorByScalar(storedValues.get(pos)[head], scores[pos]);
-                sums[head] = Util.addVectors(sums[head], sum);
+                // Scoring all tokens (including the actual), separately for all heads
+                // (The results of the heads are concatenated, written next to each other in the row of the token)
+                for (int head = 0; head < headCount; head++)
+                {
+                    int headOffset = head * headSize;
+
+                    attentionHead(data, queryKeyValues.rowOffset(token) + headOffset,
+                            data, keyOffset + headOffset, data, valueOffset + headOffset, queryKeyValues.getCols(),
+                            tokenCount, headSize, settings.getEncoderScoreDividend(),
+                            sumData, sums.rowOffset(token) + headOffset, state);
+                }
             }
-        }
-
-        // Concatenate the results for all heads
-        float[] flatSums = Util.flattenMatrix(sums);
+        });
 
         // Apply the attention projection weights and biases
-        return applyWeight(flatSums, projectionWeights, projectionBiases);
+        return applyWeight(sums, projectionWeights, projectionBiases);
     }
 
-    private float[] neuronBlock(float[] inputHiddenState)
+    private FloatTensor neuronBlock(FloatTensor inputHiddenStates)
     {
         // Neuron layers
-        float[] hiddenState = neuronLayers(inputHiddenState);
+        FloatTensor hiddenStates = neuronLayers(inputHiddenStates);
 
         // Add the original input state to the actual (residual connection)
-        hiddenState = Util.addVectors(hiddenState, inputHiddenState);
+        hiddenStates = Util.addMatrices(hiddenStates, inputHiddenStates);
 
         // Normalization
-        return normalization(hiddenState, mlpNormWeights, mlpNormBiases, settings.getEpsilon());
+        return normalization(hiddenStates, mlpNormWeights, mlpNormBiases, settings.getEpsilon());
     }
 
-    private float[] neuronLayers(float[] hiddenState)
+    private FloatTensor neuronLayers(FloatTensor hiddenStates)
     {
         // Layer 1: <hiddenSize> * 4 neurons (using a gelu activation function)
-        hiddenState = applyWeight(hiddenState, mlpLayer1Weights, mlpLayer1Biases);
-        for (int neuron = 0; neuron < settings.getHiddenSize() * 4; neuron++)
+        hiddenStates = applyWeight(hiddenStates, mlpLayer1Weights, mlpLayer1Biases);
+        float[] data = hiddenStates.getData();
+        for (int i = 0; i < data.length; i++)
         {
-            hiddenState[neuron] = gelu(hiddenState[neuron]);
+            data[i] = gelu(data[i]);
         }
 
         // Layer 2: <hiddenSize> neurons (without activation function)
-        return applyWeight(hiddenState, mlpLayer2Weights, mlpLayer2Biases);
-    }
-
-    /**
-     * Clear the stored values after the encoder calculated its outputs
-     */
-    public void clear()
-    {
-        storedKeys.clear();
-        storedValues.clear();
+        return applyWeight(hiddenStates, mlpLayer2Weights, mlpLayer2Biases);
     }
 }
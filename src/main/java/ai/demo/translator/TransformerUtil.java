@@ -1,41 +1,129 @@
 package ai.demo.translator;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.PriorityQueue;
 
 import static java.lang.Math.*;
 
 public class TransformerUtil
 {
+    // Size of the state of the segmented attention calculation (maximum score, sum)
+    public static final int ATTENTION_STATE_SIZE = 2;
+
     /**
      * Applying weights using vector by matrix multiplication plus adding biases
      */
-    public static float[] applyWeight(float[] vector, float[][] weights, float[] biases)
+    public static float[] applyWeight(float[] vector, Tensor weights, float[] biases)
+    {
+        float[] result = new float[weights.getCols()];
+
+        applyWeight(vector, weights, biases, result);
+
+        return result;
+    }
+
+    /**
+     * Applying weights into the result vector (it should be different to the input)
+     */
+    public static void applyWeight(float[] vector, Tensor weights, float[] biases, float[] result)
     {
-        float[] result = Util.multiplyVectorByMatrix(vector, weights);
+        Util.multiplyVectorByMatrix(vector, weights, result);
 
         if (biases != null)
         {
-            result = Util.addVectors(result, biases);
+            Util.addVectors(result, biases, result);
         }
+    }
+
+    /**
+     * Applying weights on all rows of a matrix (matrix by matrix multiplication plus adding biases)
+     */
+    public static FloatTensor applyWeight(FloatTensor matrix, Tensor weights, float[] biases)
+    {
+        FloatTensor result = Util.multiplyMatrixByMatrix(matrix, weights);
+
+        addBiases(result, biases);
 
         return result;
     }
 
+    /**
+     * Apply multiple weights and biases on the same input matrix (the multiplications are done together)
+     */
+    public static FloatTensor[] applyWeights(FloatTensor matrix, Tensor[] weights, float[][] biases)
+    {
+        FloatTensor[] results = Util.multiplyMatrixByMatrices(matrix, weights);
+
+        for (int i = 0; i < results.length; i++)
+        {
+            addBiases(results[i], biases[i]);
+        }
+
+        return results;
+    }
+
+    private static void addBiases(FloatTensor result, float[] biases)
+    {
+        if (biases != null)
+        {
+            float[] data = result.getData();
+
+            for (int row = 0; row < result.getRows(); row++)
+            {
+                int offset = result.rowOffset(row);
+
+                for (int i = 0; i < biases.length; i++)
+                {
+                    data[offset + i] = data[offset + i] + biases[i];
+                }
+            }
+        }
+    }
+
     /**
      * Standard normalization with applying weights and biases
      */
     public static float[] normalization(float[] vector, float[] weights, float[] biases, float epsilon)
+    {
+        float[] result = new float[vector.length];
+
+        normalization(vector, weights, biases, epsilon, result);
+
+        return result;
+    }
+
+    /**
+     * Standard normalization with applying weights and biases into the result vector (it can be the same as the input)
+     */
+    public static void normalization(float[] vector, float[] weights, float[] biases, float epsilon, float[] result)
     {
         // Standard normalization
-        float[] result = Util.normalize(vector, epsilon);
+        Util.normalize(vector, epsilon, result);
 
         // Applying the trained weights and biases
         for (int i = 0; i < vector.length; i++)
         {
             result[i] = result[i] * weights[i] + biases[i];
         }
+    }
+
+    /**
+     * Standard normalization with applying weights and biases, separately for all rows of a matrix
+     */
+    public static FloatTensor normalization(FloatTensor matrix, float[] weights, float[] biases, float epsilon)
+    {
+        FloatTensor result = new FloatTensor(matrix.getRows(), matrix.getCols());
+        float[] row = new float[matrix.getCols()];
+
+        for (int i = 0; i < matrix.getRows(); i++)
+        {
+            matrix.copyRow(i, row);
+            normalization(row, weights, biases, epsilon, row);
+            System.arraycopy(row, 0, result.getData(), result.rowOffset(i), row.length);
+        }
 
         return result;
     }
@@ -54,41 +142,152 @@ public class TransformerUtil
      */
     public static float[] softmax(float[] vector)
     {
-        double total = 0;
-        for (float value : vector)
+        float[] ret = new float[vector.length];
+
+        softmax(vector, vector.length, ret);
+
+        return ret;
+    }
+
+    /**
+     * Calculate softmax on the first [length] values into the result vector (it can be the same as the input)
+     * The maximum is subtracted from the values before the exp (softmax(x) = softmax(x - max)), so it can't overflow,
+     * and the exp is calculated only once for every value (stored in the result, then divided by the sum)
+     */
+    public static void softmax(float[] vector, int length, float[] result)
+    {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++)
         {
-            total = total + exp(value);
+            max = Math.max(max, vector[i]);
         }
 
-        float[] ret = new float[vector.length];
+        float sum = Util.KERNEL.expAndSum(vector, max, result, length);
 
-        for (int i = 0; i < vector.length; i++)
+        scale(result, 0, length, 1 / sum);
+    }
+
+    /**
+     * Calculate softmax on IndexedValue list - rescale the values into a range between 0 and 1
+     */
+    public static float[] softmax(List<IndexedValue> values)
+    {
+        float[] ret = new float[values.size()];
+
+        for (int i = 0; i < values.size(); i++)
         {
-            ret[i] = (float) (exp(vector[i]) / total);
+            ret[i] = values.get(i).value;
         }
 
+        softmax(ret, ret.length, ret);
+
         return ret;
     }
 
     /**
-     * Calculate softmax on IndexedValue list - rescale the values into a range between 0 and 1
+     * Calculate log softmax (the logarithm of the softmax) on a segment of the vector into the result vector
      */
-    public static float[] softmax(List<IndexedValue> values)
+    public static void logSoftmax(float[] vector, int offset, int length, float[] result)
     {
-        double total = 0;
-        for (IndexedValue value : values)
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = offset; i < offset + length; i++)
         {
-            total = total + exp(value.value);
+            max = Math.max(max, vector[i]);
         }
 
-        float[] ret = new float[values.size()];
+        // log(exp(x - max) / sum) = x - max - log(sum)
+        System.arraycopy(vector, offset, result, 0, length);
+        float logSum = (float) log(Util.KERNEL.expAndSum(result, max, result, length));
 
-        for (int i = 0; i < values.size(); i++)
+        for (int i = 0; i < length; i++)
         {
-            ret[i] = (float) (exp(values.get(i).value) / total);
+            result[i] = vector[offset + i] - max - logSum;
         }
+    }
 
-        return ret;
+    /**
+     * Attention of a single head in a single pass: scoring the positions, softmax and the weighted sum of the values
+     * The softmax is calculated on the fly (online softmax): the sum is rescaled whenever a new maximum score is found,
+     * so the scores aren't stored, and the weighted values are accumulated directly into the target segment
+     * The key of the position i is at keys[keyOffset + i * stride], the value is at values[valueOffset + i * stride]
+     * (The state is a reusable buffer of ATTENTION_STATE_SIZE elements, see attentionSegment)
+     */
+    public static void attentionHead(float[] query, int queryOffset, float[] keys, int keyOffset,
+                                     float[] values, int valueOffset, int stride, int positions, int headSize, float scoreDividend,
+                                     float[] target, int targetOffset, float[] state)
+    {
+        startAttentionHead(target, targetOffset, headSize, state);
+
+        attentionSegment(query, queryOffset, keys, keyOffset, values, valueOffset, stride, positions, headSize,
+                scoreDividend, target, targetOffset, state);
+
+        finishAttentionHead(target, targetOffset, headSize, state);
+    }
+
+    /**
+     * Start the attention of a head if the positions are stored in multiple segments (see attentionSegment)
+     * The state holds the actual maximum score and the sum of the softmax between the segments
+     */
+    public static void startAttentionHead(float[] target, int targetOffset, int headSize, float[] state)
+    {
+        Arrays.fill(target, targetOffset, targetOffset + headSize, 0);
+
+        state[0] = Float.NEGATIVE_INFINITY;
+        state[1] = 0;
+    }
+
+    /**
+     * Process a segment of the positions by the attention of a head (continuing the online softmax of the state)
+     */
+    public static void attentionSegment(float[] query, int queryOffset, float[] keys, int keyOffset,
+                                        float[] values, int valueOffset, int stride, int positions, int headSize, float scoreDividend,
+                                        float[] target, int targetOffset, float[] state)
+    {
+        float max = state[0];
+        float sum = state[1];
+
+        for (int pos = 0; pos < positions; pos++)
+        {
+            // The score is calculated multiplying the "actual" query vector and the "related" key vector
+            float score = Util.dotProduct(query, queryOffset, keys, keyOffset + pos * stride, headSize) / scoreDividend;
+
+            if (score > max)
+            {
+                // Rescale the previous values to the new maximum (at the first position the sum is still zero)
+                if (sum > 0)
+                {
+                    float correction = Util.fastExp(max - score);
+                    sum = sum * correction;
+                    scale(target, targetOffset, headSize, correction);
+                }
+
+                max = score;
+            }
+
+            float weight = Util.fastExp(score - max);
+            sum = sum + weight;
+
+            Util.addScaled(weight, values, valueOffset + pos * stride, target, targetOffset, headSize);
+        }
+
+        state[0] = max;
+        state[1] = sum;
+    }
+
+    /**
+     * Finish the attention of a head (dividing the accumulated values by the sum of the softmax)
+     */
+    public static void finishAttentionHead(float[] target, int targetOffset, int headSize, float[] state)
+    {
+        scale(target, targetOffset, headSize, 1 / state[1]);
+    }
+
+    private static void scale(float[] vector, int offset, int length, float scalar)
+    {
+        for (int i = offset; i < offset + length; i++)
+        {
+            vector[i] = vector[i] * scalar;
+        }
     }
 
     /**
@@ -119,17 +318,58 @@ public class TransformerUtil
     }
 
     /**
-     * Sort values to reversed order and filter out the lowest values (retain the top [count] values)
+     * Index of the highest value (in linear time, the first one if there are more equal values)
      */
     public static int findBest(float[] values)
     {
-        TreeSet<IndexedValue> indexedValues = new TreeSet<>(new ReverseComparator());
+        return findBest(values, 0, values.length);
+    }
+
+    /**
+     * Index of the highest value in a segment of the array (relative to the offset)
+     */
+    public static int findBest(float[] values, int offset, int length)
+    {
+        int best = offset;
+        for (int i = offset + 1; i < offset + length; i++)
+        {
+            if (values[i] > values[best]) best = i;
+        }
+
+        return best - offset;
+    }
+
+    /**
+     * The top [count] values with the indexes, in reversed order (the highest first)
+     * Only a heap of [count] elements is maintained, so it is linear in the number of values (for a small count)
+     */
+    public static List<IndexedValue> findBest(float[] values, int count)
+    {
+        if (count < 1)
+        {
+            throw new RuntimeException("The count should be at least 1 (" + count + ")");
+        }
+
+        // The lowest of the retained values is at the top of the heap
+        PriorityQueue<IndexedValue> heap = new PriorityQueue<>(count + 1, new ReverseComparator().reversed());
+
         for (int i = 0; i < values.length; i++)
         {
-            indexedValues.add(new IndexedValue(values[i], i));
+            if (heap.size() < count)
+            {
+                heap.add(new IndexedValue(values[i], i));
+            }
+            else if (values[i] > heap.peek().value)
+            {
+                heap.poll();
+                heap.add(new IndexedValue(values[i], i));
+            }
         }
 
-        return indexedValues.first().index;
+        List<IndexedValue> ret = new ArrayList<>(heap);
+        ret.sort(new ReverseComparator());
+
+        return ret;
     }
 
     /**
@@ -154,7 +394,10 @@ public class TransformerUtil
     {
         public int compare(IndexedValue a, IndexedValue b)
         {
-            return Float.compare(b.value, a.value);
+            int ret = Float.compare(b.value, a.value);
+
+            // The lower index is the first if the values are equal
+            return ret != 0 ? ret : Integer.compare(a.index, b.index);
         }
     }
 }
@@ -0,0 +1,246 @@
+package ai.demo.translator;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Cache of the translation results in front of the Transformer.processTokens (thread safe)
+ * The key is the input token sequence with the decoding settings, the least recently used results are evicted
+ * if the estimated memory usage exceeds the memory budget
+ * Concurrent requests of the same translation share a single computation (the later ones wait for the first)
+ */
+public class TranslationCache
+{
+    // Estimated memory usage of an entry (map entry, key and list objects) and of a stored token (Integer and reference)
+    private static final int ENTRY_MEMORY_SIZE = 160;
+    private static final int TOKEN_MEMORY_SIZE = 20;
+
+    private final Transformer transformer;
+    private final Function<List<Integer>, List<Integer>> translation;
+    private final long maxMemorySize;
+
+    // The entries in access order (the first is the least recently used), guarded by itself
+    private final LinkedHashMap<Key, List<Integer>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long memorySize;
+
+    // The translations under processing
+    private final Map<Key, CompletableFuture<List<Integer>>> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public TranslationCache(Transformer transformer, long maxMemorySize)
+    {
+        this(transformer, transformer::processTokens, maxMemorySize);
+    }
+
+    /**
+     * Initialization with the translation of the missing results (for example by a BatchScheduler, it should give
+     * the same result as the transformer)
+     */
+    public TranslationCache(Transformer transformer, Function<List<Integer>, List<Integer>> translation, long maxMemorySize)
+    {
+        if (maxMemorySize <= 0)
+        {
+            throw new RuntimeException("The memory size of the translation cache should be positive (" + maxMemorySize + ")");
+        }
+
+        this.transformer = transformer;
+        this.translation = translation;
+        this.maxMemorySize = maxMemorySize;
+    }
+
+    /**
+     * Translate the input tokens, returning the generated tokens (the same as Transformer.processTokens, but unmodifiable)
+     */
+    public List<Integer> processTokens(List<Integer> tokens)
+    {
+        Settings settings = transformer.getSettings();
+        Key key = new Key(tokens, settings.getBeamSize(), settings.getLengthPenalty());
+
+        List<Integer> result = get(key);
+        if (result != null)
+        {
+            hitCount.incrementAndGet();
+            return result;
+        }
+
+        CompletableFuture<List<Integer>> future = new CompletableFuture<>();
+        CompletableFuture<List<Integer>> previous = pending.putIfAbsent(key, future);
+
+        if (previous != null)
+        {
+            // The same translation is already processed by an other thread
+            hitCount.incrementAndGet();
+            return await(previous);
+        }
+
+        try
+        {
+            // It could be finished by an other thread between the get and the putIfAbsent
+            result = get(key);
+            if (result != null)
+            {
+                hitCount.incrementAndGet();
+            }
+            else
+            {
+                missCount.incrementAndGet();
+
+                result = Collections.unmodifiableList(new ArrayList<>(translation.apply(key.tokens)));
+                put(key, result);
+            }
+
+            future.complete(result);
+            return result;
+        }
+        catch (RuntimeException | Error e)
+        {
+            // Complete the future on every failure, the threads waiting for it would hang otherwise
+            future.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            pending.remove(key);
+        }
+    }
+
+    private List<Integer> get(Key key)
+    {
+        synchronized (entries)
+        {
+            return entries.get(key);
+        }
+    }
+
+    private void put(Key key, List<Integer> result)
+    {
+        long size = memorySize(key, result);
+
+        // A result larger than the whole budget isn't stored
+        if (size > maxMemorySize) return;
+
+        synchronized (entries)
+        {
+            List<Integer> previous = entries.put(key, result);
+            if (previous != null) memorySize -= memorySize(key, previous);
+            memorySize += size;
+
+            // Evict the least recently used entries
+            Iterator<Map.Entry<Key, List<Integer>>> iterator = entries.entrySet().iterator();
+            while (memorySize > maxMemorySize && iterator.hasNext())
+            {
+                Map.Entry<Key, List<Integer>> entry = iterator.next();
+                memorySize -= memorySize(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    private static List<Integer> await(CompletableFuture<List<Integer>> future)
+    {
+        try
+        {
+            return future.join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    private static long memorySize(Key key, List<Integer> result)
+    {
+        return ENTRY_MEMORY_SIZE + (long) (key.tokens.size() + result.size()) * TOKEN_MEMORY_SIZE;
+    }
+
+    /**
+     * Remove all stored results (the counters aren't reset)
+     */
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+            memorySize = 0;
+        }
+    }
+
+    /**
+     * Number of the requests served from the cache (or by waiting for the same translation of an other thread)
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * Number of the requests processed by the transformer
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    public int getSize()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Estimated memory usage of the stored results (in bytes)
+     */
+    public long getMemorySize()
+    {
+        synchronized (entries)
+        {
+            return memorySize;
+        }
+    }
+
+    /**
+     * Input tokens with the decoding settings which affect the result
+     */
+    private static class Key
+    {
+        private final List<Integer> tokens;
+        private final int beamSize;
+        private final float lengthPenalty;
+        private final int hashCode;
+
+        private Key(List<Integer> tokens, int beamSize, float lengthPenalty)
+        {
+            this.tokens = new ArrayList<>(tokens);
+            this.beamSize = beamSize;
+            this.lengthPenalty = lengthPenalty;
+            this.hashCode = Objects.hash(this.tokens, beamSize, lengthPenalty);
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (this == other) return true;
+            if ( ! (other instanceof Key)) return false;
+
+            Key key = (Key) other;
+            return beamSize == key.beamSize && Float.compare(lengthPenalty, key.lengthPenalty) == 0
+                    && tokens.equals(key.tokens);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package ai.demo.translator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * HTTP translation server (using the HTTP server of the JDK)
+ * Usage: TranslationServer <path-of-the-parameters> [key=value ...] (the same overrides as at the App)
+ * Endpoints:
+ *  - POST /translate: request {"text": "..."}, response {"translation": "..."}
+ *  - POST /translate/stream: request {"text": "..."}, the translated text is streamed as it is generated (chunked)
+ *  - GET /health: the server is running (with the counters of the translation cache)
+ *  - GET /ready: the model is loaded (503 before that)
+ * The requests are handled on virtual threads (Java 21+) or on a cached thread pool. The number of translations
+ * processed at the same time is server.thread.count, the other requests wait (up to server.queue.size),
+ * above that the server answers 503 with a Retry-After header
+ * The greedy translations of the concurrent requests are decoded together by a BatchScheduler (up to max.batch.size)
+ * The results of the /translate requests are cached if the cache.size setting is positive (in megabytes)
+ * If a streamed translation fails after the response was started, the connection is closed without finishing the
+ * chunked response (so the client gets an error instead of a truncated text)
+ */
+public class TranslationServer
+{
+    // Maximum size of a request body (in bytes)
+    private static final int MAX_REQUEST_SIZE = 1024 * 1024;
+
+    // Suggested wait before retrying a rejected request (in seconds)
+    private static final String RETRY_AFTER = "1";
+
+    private final Settings settings;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // Permits of the processed and the waiting requests, and permits of the processed translations
+    private final Semaphore admissions;
+    private final Semaphore workers;
+
+    private volatile Tokenizer tokenizer;
+    private volatile Transformer transformer;
+    private volatile BatchScheduler scheduler;
+    private volatile TranslationCache cache;
+
+    public static void main(String... args) throws Exception
+    {
+        App.OUT = new PrintStream(System.out, true, "utf-8");
+
+        if (args == null || args.length == 0)
+        {
+            App.OUT.println("Usage: TranslationServer <path-of-the-parameters> [key=value ...]");
+            return;
+        }
+
+        String path = args[0];
+        Settings settings = new Settings(path, App.readOverrides(args));
+
+        TranslationServer server = new TranslationServer(settings);
+        server.start();
+        App.OUT.println("Listening on port " + settings.getServerPort() + ", loading the trained parameters...");
+
+        try
+        {
+            server.load();
+        }
+        catch (Throwable e)
+        {
+            // Without the model the server would never be ready, so stop it (and the process, with an error code)
+            server.stop(0);
+            App.OUT.println("\nERROR: " + e.getMessage());
+            System.exit(1);
+        }
+
+        App.OUT.println("Ready (compute kernel: " + Util.getKernelName() + ", weight format: " + settings.getWeightFormat().getName() + ")");
+    }
+
+    public TranslationServer(Settings settings) throws IOException
+    {
+        this.settings = settings;
+
+        this.admissions = new Semaphore(settings.getServerThreadCount() + settings.getServerQueueSize());
+        this.workers = new Semaphore(settings.getServerThreadCount(), true);
+
+        this.executor = createExecutor();
+
+        this.server = HttpServer.create(new InetSocketAddress(settings.getServerPort()), 0);
+        this.server.setExecutor(executor);
+
+        this.server.createContext("/translate", exchange -> handle(exchange, "POST", this::translate));
+        this.server.createContext("/translate/stream", exchange -> handle(exchange, "POST", this::translateStream));
+        this.server.createContext("/health", exchange -> handle(exchange, "GET", this::health));
+        this.server.createContext("/ready", exchange -> handle(exchange, "GET", this::ready));
+    }
+
+    /**
+     * Start listening (the health endpoint is available, but the server isn't ready until the model is loaded)
+     */
+    public void start()
+    {
+        server.start();
+    }
+
+    /**
+     * Load the tokenizer and the trained parameters
+     */
+    public void load()
+    {
+        Tokenizer tokenizer = new Tokenizer(settings.getPath());
+        this.transformer = new Transformer(settings, tokenizer);
+        this.scheduler = BatchScheduler.create(transformer);
+
+        if (settings.getCacheSize() > 0)
+        {
+            BatchScheduler scheduler = this.scheduler;
+            this.cache = new TranslationCache(transformer,
+                    scheduler != null ? scheduler::processTokens : transformer::processTokens,
+                    settings.getCacheSize() * 1024L * 1024L);
+        }
+
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * Stop the server (waiting at most the given seconds for the active requests)
+     */
+    public void stop(int delay)
+    {
+        server.stop(delay);
+        executor.shutdown();
+
+        if (scheduler != null) scheduler.close();
+    }
+
+    public boolean isReady()
+    {
+        return tokenizer != null;
+    }
+
+    private void translate(HttpExchange exchange) throws IOException
+    {
+        StringBuilder translation = new StringBuilder();
+        process(exchange, inputTokens -> processCachedTokens(inputTokens, translation::append),
+                () -> sendJson(exchange, 200, "{\"translation\":" + Json.quote(translation.toString()) + "}"));
+    }
+
+    private void translateStream(HttpExchange exchange) throws IOException
+    {
+        process(exchange, inputTokens ->
+        {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+
+            // Every text delta is sent as a separate chunk
+            OutputStream output = exchange.getResponseBody();
+            processTokens(inputTokens, text ->
+            {
+                try
+                {
+                    output.write(text.getBytes(StandardCharsets.UTF_8));
+                    output.flush();
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            output.close();
+        }, null);
+    }
+
+    /**
+     * Translation by the cache if it is enabled (the whole text is passed at once), otherwise the same as processTokens
+     */
+    private List<Integer> processCachedTokens(List<Integer> inputTokens, Consumer<String> textConsumer)
+    {
+        TranslationCache cache = this.cache;
+        if (cache == null) return processTokens(inputTokens, textConsumer);
+
+        return transformer.decodeText(textConsumer, tokenConsumer ->
+        {
+            List<Integer> result = cache.processTokens(inputTokens);
+            result.forEach(tokenConsumer::accept);
+
+            return result;
+        });
+    }
+
+    /**
+     * Translation by the batch scheduler, or directly by the transformer if the batching isn't used
+     */
+    private List<Integer> processTokens(List<Integer> inputTokens, Consumer<String> textConsumer)
+    {
+        BatchScheduler scheduler = this.scheduler;
+
+        return scheduler != null
+                ? scheduler.processTokens(inputTokens, textConsumer)
+                : transformer.processTokens(inputTokens, textConsumer);
+    }
+
+    private void health(HttpExchange exchange) throws IOException
+    {
+        TranslationCache cache = this.cache;
+
+        if (cache == null)
+        {
+            sendJson(exchange, 200, "{\"status\":\"UP\"}");
+        }
+        else
+        {
+            sendJson(exchange, 200, "{\"status\":\"UP\",\"cache\":{\"hits\":" + cache.getHitCount() +
+                    ",\"misses\":" + cache.getMissCount() + ",\"entries\":" + cache.getSize() +
+                    ",\"memory\":" + cache.getMemorySize() + "}}");
+        }
+    }
+
+    private void ready(HttpExchange exchange) throws IOException
+    {
+        if (isReady())
+        {
+            sendJson(exchange, 200, "{\"status\":\"READY\"}");
+        }
+        else
+        {
+            exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+            sendJson(exchange, 503, "{\"status\":\"LOADING\"}");
+        }
+    }
+
+    /**
+     * Read the text of the request and convert it to tokens (or send the error response and return null)
+     */
+    private List<Integer> readInput(HttpExchange exchange) throws IOException
+    {
+        if ( ! isReady())
+        {
+            exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+            sendError(exchange, 503, "The model is loading.");
+            return null;
+        }
+
+        byte[] body = readBody(exchange.getRequestBody());
+        if (body == null)
+        {
+            sendError(exchange, 413, "The request is too large (maximum " + MAX_REQUEST_SIZE + " bytes).");
+            return null;
+        }
+
+        String text;
+        try
+        {
+            text = Json.getString(new String(body, StandardCharsets.UTF_8), "text");
+        }
+        catch (RuntimeException e)
+        {
+            sendError(exchange, 400, e.getMessage());
+            return null;
+        }
+
+        if (text == null)
+        {
+            sendError(exchange, 400, "Missing \"text\" field.");
+            return null;
+        }
+
+        List<Integer> tokens = tokenizer.encode(text);
+
+        // The input is wrapped between a START-OF-TEXT and an END-OF-TEXT token
+        if (tokens.size() + 2 > settings.getContextSize())
+        {
+            sendError(exchange, 400, "The text is too long (" + tokens.size() + " tokens, maximum " + (settings.getContextSize() - 2) + ").");
+            return null;
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Process a translation: the request waits for a free worker, or it is rejected if too many requests are waiting
+     * (The request is admitted before reading and tokenizing its text, so the queue limit covers that work as well)
+     */
+    private void process(HttpExchange exchange, Translation translation, Step response) throws IOException
+    {
+        if ( ! admissions.tryAcquire())
+        {
+            exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+            sendError(exchange, 503, "The server is busy.");
+            return;
+        }
+
+        try
+        {
+            List<Integer> inputTokens = readInput(exchange);
+            if (inputTokens == null) return;
+
+            long start = Metrics.start();
+            workers.acquire();
+            Metrics.record(Metrics.Stage.QUEUE_WAIT, start);
+
+            try
+            {
+                translation.run(inputTokens);
+            }
+            finally
+            {
+                workers.release();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            sendError(exchange, 503, "The server is stopping.");
+            return;
+        }
+        finally
+        {
+            admissions.release();
+        }
+
+        if (response != null) response.run();
+    }
+
+    /**
+     * Common request handling: path and method check and error responses
+     */
+    private void handle(HttpExchange exchange, String method, Handler handler)
+    {
+        boolean isAborted = false;
+
+        try
+        {
+            // The contexts match by prefix, but only the exact paths are served
+            if ( ! exchange.getRequestURI().getPath().equals(exchange.getHttpContext().getPath()))
+            {
+                sendError(exchange, 404, "Not found.");
+            }
+            else if ( ! exchange.getRequestMethod().equalsIgnoreCase(method))
+            {
+                exchange.getResponseHeaders().set("Allow", method);
+                sendError(exchange, 405, "Method not allowed.");
+            }
+            else
+            {
+                handler.run(exchange);
+            }
+        }
+        catch (UncheckedIOException | IOException e)
+        {
+            // The client closed the connection
+        }
+        catch (RuntimeException | Error e)
+        {
+            if (exchange.getResponseCode() != -1)
+            {
+                // The streamed response was already started, so the error can't be sent. The exception is passed to
+                // the HTTP server, which drops the connection without the terminating chunk: the client gets
+                // an incomplete response instead of a truncated, but normally finished translation
+                // (The server closes the connection only for an Exception, so an Error is wrapped)
+                isAborted = true;
+                throw e instanceof Error ? new RuntimeException(e) : (RuntimeException) e;
+            }
+
+            try
+            {
+                sendError(exchange, 500, "Translation failed: " + e.getMessage());
+            }
+            catch (IOException | RuntimeException ignored)
+            {
+                // The client closed the connection
+            }
+        }
+        finally
+        {
+            if ( ! isAborted) exchange.close();
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException
+    {
+        sendJson(exchange, status, "{\"error\":" + Json.quote(message) + "}");
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException
+    {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        try (OutputStream output = exchange.getResponseBody())
+        {
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Read the request body (null if it is larger than the maximum)
+     */
+    private static byte[] readBody(InputStream input) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+
+        for (int length = input.read(buffer); length >= 0; length = input.read(buffer))
+        {
+            body.write(buffer, 0, length);
+            if (body.size() > MAX_REQUEST_SIZE) return null;
+        }
+
+        return body.toByteArray();
+    }
+
+    /**
+     * Executor of the request handlers: virtual threads if available (Java 21+), otherwise a cached thread pool
+     */
+    private static ExecutorService createExecutor()
+    {
+        try
+        {
+            // The code is compiled for Java 8, so the virtual thread executor is created by reflection
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            return Executors.newCachedThreadPool(runnable ->
+            {
+                Thread thread = new Thread(runnable, "translator-server-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Handler of an endpoint
+     */
+    private interface Handler
+    {
+        void run(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * Part of the request processing (writing the response may throw IOException)
+     */
+    private interface Step
+    {
+        void run() throws IOException;
+    }
+
+    /**
+     * Translation of the tokenized input text
+     */
+    private interface Translation
+    {
+        void run(List<Integer> inputTokens) throws IOException;
+    }
+}
@@ -0,0 +1,87 @@
+package ai.demo.translator;
+
+/**
+ * All mutable state of a single translation: the key-value caches of the decoders and the workspace buffers
+ * The transformer itself holds only the (immutable) weights, so multiple translations can run in parallel,
+ * every one with its own session (a session is used by a single thread at a time)
+ * The sessions are reusable: after clear the allocated memory is retained for the next translation
+ * (The sessions of the same translation can share the stored keys and values, so these are used by the same thread)
+ */
+public class TranslationSession
+{
+    private final Workspace workspace;
+
+    // Key-value caches of the self attention and the cross-attention (one for every decoder)
+    private final KeyValueCache[] selfCaches;
+    private final KeyValueCache[] crossCaches;
+
+    public TranslationSession(Settings settings)
+    {
+        this.workspace = new Workspace(settings);
+
+        int decoderCount = settings.getDecoderCount();
+        int headCount = settings.getDecoderHeadCount();
+        int headSize = settings.getHiddenSize() / headCount;
+
+        this.selfCaches = new KeyValueCache[decoderCount];
+        this.crossCaches = new KeyValueCache[decoderCount];
+
+        for (int i = 0; i < decoderCount; i++)
+        {
+            selfCaches[i] = new KeyValueCache(headCount, headSize, settings.getContextSize());
+            crossCaches[i] = new KeyValueCache(headCount, headSize, settings.getContextSize());
+        }
+    }
+
+    /**
+     * Make this session a copy of the other session (for example to continue a translation in two different ways)
+     * The stored keys and values aren't copied, the caches share them (copy-on-write)
+     */
+    public void share(TranslationSession other)
+    {
+        for (int i = 0; i < selfCaches.length; i++)
+        {
+            selfCaches[i].share(other.selfCaches[i]);
+            crossCaches[i].share(other.crossCaches[i]);
+        }
+    }
+
+    /**
+     * Remove the stored self attention keys and values after the first [size] positions
+     * (For example the positions of rejected draft tokens of the speculative decoding)
+     */
+    public void truncate(int size)
+    {
+        for (KeyValueCache selfCache : selfCaches)
+        {
+            selfCache.truncate(size);
+        }
+    }
+
+    /**
+     * Delete the stored values after finishing the translation
+     */
+    public void clear()
+    {
+        for (int i = 0; i < selfCaches.length; i++)
+        {
+            selfCaches[i].clear();
+            crossCaches[i].clear();
+        }
+    }
+
+    public Workspace getWorkspace()
+    {
+        return workspace;
+    }
+
+    public KeyValueCache getSelfCache(int decoderId)
+    {
+        return selfCaches[decoderId];
+    }
+
+    public KeyValueCache getCrossCache(int decoderId)
+    {
+        return crossCaches[decoderId];
+    }
+}
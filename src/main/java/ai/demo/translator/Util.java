@@ -1,14 +1,67 @@
 package ai.demo.translator;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import static java.lang.Math.exp;
 import static java.lang.Math.sqrt;
 
 public class Util
 {
+    static final ComputeKernel KERNEL = ComputeKernel.create();
+
+    // Matrices smaller than this (number of multiplications) are processed on the caller thread only,
+    // because splitting them would cost more than the calculation itself (for example 768 x 768)
+    private static final int PARALLEL_THRESHOLD = 1 << 20;
+
+    // Minimum number of rows or columns processed by a single task
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    // Tile sizes of the matrix by matrix multiplication: a tile of the matrix (TILE_INNER x TILE_COLS) fits into
+    // the L2 cache, so it is read from the memory only once and used for all input rows
+    private static final int TILE_COLS = 256;
+    private static final int TILE_INNER = 256;
+
+    // Constants of the fastExp function
+    static final float EXP_MIN = -87f;
+    static final float EXP_MAX = 88f;
+    static final float LOG2_E = 1.44269504f;
+    // Adding and subtracting 1.5 * 2^23 rounds a float to the nearest integer
+    static final float ROUNDING_CONSTANT = 12582912f;
+    // ln(2) split to two parts, the first one has only a few significant bits (so n * LN2_HIGH is exact)
+    static final float LN2_HIGH = 0.693359375f;
+    static final float LN2_LOW = -2.12194440e-4f;
+    // Taylor coefficients of exp(r), from the highest order (1/6!, 1/5!, ... 1/1!, 1)
+    static final float[] EXP_COEFFICIENTS = {1 / 720f, 1 / 120f, 1 / 24f, 1 / 6f, 1 / 2f, 1f, 1f};
+
+    // Threads of the matrix multiplications (set by the -Dtranslator.threads=n system property, default: number of processors)
+    private static final ForkJoinPool threadPool = createThreadPool(Integer.getInteger("translator.threads", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Name of the used compute kernel implementation
+     */
+    public static String getKernelName()
+    {
+        return KERNEL.getName();
+    }
+
+    /**
+     * Number of threads used by the matrix multiplications
+     */
+    public static int getThreadCount()
+    {
+        return threadPool == null ? 1 : threadPool.getParallelism();
+    }
+
+    private static ForkJoinPool createThreadPool(int threadCount)
+    {
+        return threadCount > 1 ? new ForkJoinPool(threadCount) : null;
+    }
+
     /**
      * Vector to vector addition
      */
@@ -16,27 +69,53 @@ public class Util
     {
         float[] ret = new float[vector1.length];
 
-        for (int i = 0; i < vector1.length; i++)
-        {
-            ret[i] = vector1[i] + vector2[i];
-        }
+        addVectors(vector1, vector2, ret);
 
         return ret;
     }
 
+    /**
+     * Vector to vector addition into the result vector (it can be the same as one of the inputs)
+     */
+    public static void addVectors(float[] vector1, float[] vector2, float[] result)
+    {
+        KERNEL.addVectors(vector1, vector2, result, vector1.length);
+    }
+
     /**
      * Dot product calculation (multiplying vector by vector)
      */
     public static float dotProduct(float[] vector1, float[] vector2)
     {
-        float sum = 0;
+        return KERNEL.dotProduct(vector1, 0, vector2, 0, vector1.length);
+    }
 
-        for (int i = 0; i < vector1.length; i++)
-        {
-            sum = sum + vector1[i] * vector2[i];
-        }
+    /**
+     * Dot product calculation of vector segments (given by the start offsets and the length)
+     */
+    public static float dotProduct(float[] vector1, int offset1, float[] vector2, int offset2, int length)
+    {
+        return KERNEL.dotProduct(vector1, offset1, vector2, offset2, length);
+    }
+
+    /**
+     * Add a vector segment multiplied by a scalar to the target vector segment: target += scalar * vector
+     */
+    public static void addScaled(float scalar, float[] vector, int offset, float[] target, int targetOffset, int length)
+    {
+        KERNEL.addScaled(scalar, vector, offset, target, targetOffset, length);
+    }
+
+    /**
+     * Matrix to matrix addition
+     */
+    public static FloatTensor addMatrices(FloatTensor matrix1, FloatTensor matrix2)
+    {
+        FloatTensor ret = new FloatTensor(matrix1.getRows(), matrix1.getCols());
 
-        return sum;
+        KERNEL.addVectors(matrix1.getData(), matrix2.getData(), ret.getData(), ret.getData().length);
+
+        return ret;
     }
 
     /**
@@ -46,58 +125,309 @@ public class Util
     {
         float[] ret = new float[vector.length];
 
+        multiplyVectorByScalar(vector, scalar, ret);
+
+        return ret;
+    }
+
+    /**
+     * Multiply vector by a scalar into the result vector (it can be the same as the input)
+     */
+    public static void multiplyVectorByScalar(float[] vector, float scalar, float[] result)
+    {
         for (int i = 0; i < vector.length; i++)
         {
-            ret[i] = vector[i] * scalar;
+            result[i] = vector[i] * scalar;
         }
+    }
+
+    /**
+     * Multiply vector by matrix
+     * (Iterating over the rows of the matrix, so the inner loop reads the memory sequentially)
+     */
+    public static float[] multiplyVectorByMatrix(float[] vector, Tensor matrix)
+    {
+        float[] ret = new float[matrix.getCols()];
+
+        multiplyVectorByMatrix(vector, matrix, ret);
 
         return ret;
     }
 
     /**
-     * Multiply vector by matrix
+     * Multiply vector by matrix into the result vector (it should be different to the input)
      */
-    public static float[] multiplyVectorByMatrix(float[] vector, float[][] matrix)
+    public static void multiplyVectorByMatrix(float[] vector, Tensor matrix, float[] result)
     {
-        float[] ret = new float[matrix[0].length];
+        int cols = matrix.getCols();
 
-        for (int col = 0; col < matrix[0].length; col++)
-        {
-            float sum = 0;
+        Arrays.fill(result, 0, cols, 0);
 
+        // The columns are split between the threads, every task processes all rows for its own columns
+        executeInChunks(cols, (long) vector.length * cols, (from, to) ->
+        {
             for (int i = 0; i < vector.length; i++)
             {
-                sum = sum + vector[i] * matrix[i][col];
+                matrix.addScaledRow(i, from, vector[i], result, from, to - from);
             }
+        });
+    }
 
-            ret[col] = sum;
-        }
+    /**
+     * Multiply vector by transposed matrix
+     */
+    public static float[] multiplyVectorByTransposedMatrix(float[] vector, Tensor matrix)
+    {
+        float[] ret = new float[matrix.getRows()];
+
+        multiplyVectorByTransposedMatrix(vector, matrix, ret);
 
         return ret;
     }
 
     /**
-     * Multiply vector by transposed matrix
+     * Multiply vector by transposed matrix into the result vector (it should be different to the input)
+     */
+    public static void multiplyVectorByTransposedMatrix(float[] vector, Tensor matrix, float[] result)
+    {
+        int rows = matrix.getRows();
+
+        // The rows are split between the threads
+        executeInChunks(rows, (long) vector.length * rows, (from, to) ->
+        {
+            for (int row = from; row < to; row++)
+            {
+                result[row] = matrix.dotProductRow(row, vector);
+            }
+        });
+    }
+
+    /**
+     * Multiply matrix by transposed matrix (all rows of the input are multiplied by the transposed matrix)
+     * Every row of the matrix is multiplied by all input rows after each other, so it is read from the memory only once
      */
-    public static float[] multiplyVectorByTransposedMatrix(float[] vector, float[][] matrix)
+    public static FloatTensor multiplyMatrixByTransposedMatrix(FloatTensor input, Tensor matrix)
     {
-        float[] ret = new float[matrix.length];
+        int inputRows = input.getRows();
+        int rows = matrix.getRows();
 
-        for (int row = 0; row < matrix.length; row++)
+        float[] inputData = input.getData();
+
+        FloatTensor ret = new FloatTensor(inputRows, rows);
+        float[] retData = ret.getData();
+
+        // The rows of the matrix are split between the threads
+        executeInChunks(rows, (long) inputRows * input.getCols() * rows, (from, to) ->
         {
-            float sum = 0;
+            for (int row = from; row < to; row++)
+            {
+                for (int i = 0; i < inputRows; i++)
+                {
+                    retData[ret.rowOffset(i) + row] = matrix.dotProductRow(row, inputData, input.rowOffset(i));
+                }
+            }
+        });
 
-            for (int i = 0; i < vector.length; i++)
+        return ret;
+    }
+
+    /**
+     * Multiply vector by transposed matrix into the result vector, and return the index of the highest result
+     * The maximum is searched by the tasks while calculating their own rows, then the maximums of the chunks are
+     * merged, so the result isn't read again (the first index is returned if there are more equal values)
+     */
+    public static int multiplyVectorByTransposedMatrixAndFindMax(float[] vector, Tensor matrix, float[] result)
+    {
+        int rows = matrix.getRows();
+
+        Maximum maximum = new Maximum();
+
+        // The rows are split between the threads
+        executeInChunks(rows, (long) vector.length * rows, (from, to) ->
+        {
+            float max = Float.NEGATIVE_INFINITY;
+            int index = -1;
+
+            for (int row = from; row < to; row++)
+            {
+                float value = matrix.dotProductRow(row, vector);
+                result[row] = value;
+
+                if (value > max || index == -1)
+                {
+                    max = value;
+                    index = row;
+                }
+            }
+
+            maximum.merge(max, index);
+        });
+
+        return maximum.index;
+    }
+
+    /**
+     * Maximum value with its index, merged from the results of the tasks
+     */
+    private static class Maximum
+    {
+        private float value = Float.NEGATIVE_INFINITY;
+        private int index = -1;
+
+        synchronized void merge(float value, int index)
+        {
+            if (index == -1) return;
+
+            if (this.index == -1 || value > this.value || (value == this.value && index < this.index))
             {
-                sum = sum + vector[i] * matrix[row][i];
+                this.value = value;
+                this.index = index;
             }
+        }
+    }
+
+    /**
+     * Multiply matrix by matrix (all rows of the input are multiplied by the matrix)
+     * The calculation is done in tiles, so a loaded part of the matrix is used for multiple input rows
+     */
+    public static FloatTensor multiplyMatrixByMatrix(FloatTensor input, Tensor matrix)
+    {
+        return multiplyMatrixByMatrices(input, new Tensor[] {matrix})[0];
+    }
+
+    /**
+     * Multiply the same input matrix by multiple matrices (with the same number of rows)
+     * The columns of all matrices are split between the threads together, so even if the matrices are small,
+     * all threads are used (and the threads never wait for the completion of an other matrix)
+     */
+    public static FloatTensor[] multiplyMatrixByMatrices(FloatTensor input, Tensor[] matrices)
+    {
+        int rows = input.getRows();
+        int inner = input.getCols();
+
+        FloatTensor[] ret = new FloatTensor[matrices.length];
 
-            ret[row] = sum;
+        // The start of the columns of the matrices in the combined column range
+        int[] colStarts = new int[matrices.length + 1];
+
+        for (int i = 0; i < matrices.length; i++)
+        {
+            ret[i] = new FloatTensor(rows, matrices[i].getCols());
+            colStarts[i + 1] = colStarts[i] + matrices[i].getCols();
         }
 
+        int totalCols = colStarts[matrices.length];
+
+        executeInChunks(totalCols, (long) rows * inner * totalCols, (from, to) ->
+        {
+            // Process the part of every matrix which is in the range of the task
+            for (int i = 0; i < matrices.length; i++)
+            {
+                int start = Math.max(from, colStarts[i]);
+                int end = Math.min(to, colStarts[i + 1]);
+
+                if (start < end)
+                {
+                    multiplyTiles(input, matrices[i], ret[i], start - colStarts[i], end - colStarts[i]);
+                }
+            }
+        });
+
         return ret;
     }
 
+    /**
+     * Multiply the input by the [from, to) columns of the matrix in tiles, writing the result to the same columns
+     */
+    private static void multiplyTiles(FloatTensor input, Tensor matrix, FloatTensor result, int from, int to)
+    {
+        int rows = input.getRows();
+        int inner = input.getCols();
+        int cols = matrix.getCols();
+
+        for (int colStart = from; colStart < to; colStart += TILE_COLS)
+        {
+            int length = Math.min(TILE_COLS, to - colStart);
+
+            for (int innerStart = 0; innerStart < inner; innerStart += TILE_INNER)
+            {
+                int innerLength = Math.min(TILE_INNER, inner - innerStart);
+
+                matrix.multiplyBlock(input.getData(), innerStart, inner, rows, innerStart, innerLength, colStart,
+                        result.getData(), colStart, cols, length);
+            }
+        }
+    }
+
+    /**
+     * Execute a task on the [0, size) range, split into chunks processed in parallel if the work is large enough
+     * (The last chunk is processed on the caller thread)
+     */
+    public static void executeInChunks(int size, long work, RangeTask task)
+    {
+        int chunkCount = threadPool == null || work < PARALLEL_THRESHOLD ? 1 : Math.min(threadPool.getParallelism(), size / MIN_CHUNK_SIZE);
+
+        if (chunkCount <= 1)
+        {
+            task.execute(0, size);
+            return;
+        }
+
+        // Chunk boundaries are rounded to multiple of the minimum chunk size (to keep the SIMD loops aligned)
+        int chunkSize = ((size / chunkCount + MIN_CHUNK_SIZE - 1) / MIN_CHUNK_SIZE) * MIN_CHUNK_SIZE;
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(chunkCount);
+
+        int from = 0;
+        while (from + chunkSize < size)
+        {
+            int start = from;
+            int end = from + chunkSize;
+            tasks.add(threadPool.submit(() -> task.execute(start, end)));
+            from = end;
+        }
+
+        task.execute(from, size);
+
+        for (ForkJoinTask<?> forkJoinTask : tasks)
+        {
+            forkJoinTask.join();
+        }
+    }
+
+    /**
+     * Task processing a range of indexes
+     */
+    public interface RangeTask
+    {
+        void execute(int from, int to);
+    }
+
+    /**
+     * Fast exp approximation on float values (used by the softmax)
+     * The argument is split to n * ln(2) + r (where n is an integer and |r| <= ln(2) / 2), exp(r) is calculated by
+     * a 6th order Taylor polynomial, and 2^n is written directly into the exponent bits of the result
+     * The relative error is below 3e-7 (a few ulp) between EXP_MIN and EXP_MAX, the result is 0 below EXP_MIN,
+     * and the argument is clamped to EXP_MAX above that (the softmax calls it with non-positive values only)
+     * The operations are simple multiplications and additions, so the SIMD kernel can do the same on vectors
+     */
+    public static float fastExp(float x)
+    {
+        if (x < EXP_MIN) return 0;
+        x = Math.min(x, EXP_MAX);
+
+        float n = (x * LOG2_E + ROUNDING_CONSTANT) - ROUNDING_CONSTANT;
+        float r = x - n * LN2_HIGH - n * LN2_LOW;
+
+        float p = EXP_COEFFICIENTS[0];
+        for (int i = 1; i < EXP_COEFFICIENTS.length; i++)
+        {
+            p = p * r + EXP_COEFFICIENTS[i];
+        }
+
+        return p * Float.intBitsToFloat(((int) n + 127) << 23);
+    }
+
     /**
      * Split a vector to a matrix
      */
@@ -164,15 +494,15 @@ public class Util
      */
     public static float averageDiff(float[] values, float average, float epsilon)
     {
-        float[] squareDiff = new float[values.length];
+        double sum = 0;
 
-        for (int i = 0; i < values.length; i++)
+        for (float value : values)
         {
-            float diff = values[i] - average;
-            squareDiff[i] = diff * diff;
+            float diff = value - average;
+            sum = sum + diff * diff;
         }
 
-        float averageSquareDiff = average(squareDiff);
+        float averageSquareDiff = (float) sum / values.length;
 
         return (float) sqrt(averageSquareDiff + epsilon);
     }
@@ -181,17 +511,25 @@ public class Util
      * Standard normalization - (value - avg) * sqrt( (value - avg)^2 + epsilon)
      */
     public static float[] normalize(float[] vector, float epsilon)
+    {
+        float[] norm = new float[vector.length];
+
+        normalize(vector, epsilon, norm);
+
+        return norm;
+    }
+
+    /**
+     * Standard normalization into the result vector (it can be the same as the input)
+     */
+    public static void normalize(float[] vector, float epsilon, float[] result)
     {
         float average = average(vector);
         float averageDiff = averageDiff(vector, average, epsilon);
 
-        float[] norm = new float[vector.length];
-
         for (int i = 0; i < vector.length; i++)
         {
-            norm[i] = (vector[i] - average) / averageDiff;
+            result[i] = (vector[i] - average) / averageDiff;
         }
-
-        return norm;
     }
 }
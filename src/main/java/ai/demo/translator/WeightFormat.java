@@ -0,0 +1,45 @@
+package ai.demo.translator;
+
+/**
+ * Storage format of the weight matrices of the encoders and decoders
+ * The parameter files contain float values (converted at loading if necessary), but 16-bit files can be used as well
+ */
+public enum WeightFormat
+{
+    // Original float values (4 bytes each)
+    FLOAT32("float32"),
+
+    // IEEE half precision floating point values (2 bytes each)
+    FLOAT16("float16"),
+
+    // Upper half of the float values (2 bytes each)
+    BFLOAT16("bfloat16"),
+
+    // 8-bit integers with a float scale for every row (1 byte each)
+    INT8("int8");
+
+    private final String name;
+
+    WeightFormat(String name)
+    {
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Find the format by name (as it is used in the model.properties file)
+     */
+    public static WeightFormat of(String name)
+    {
+        for (WeightFormat format : values())
+        {
+            if (format.name.equalsIgnoreCase(name)) return format;
+        }
+
+        return null;
+    }
+}
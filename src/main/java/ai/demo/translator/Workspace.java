@@ -0,0 +1,47 @@
+package ai.demo.translator;
+
+/**
+ * Reusable buffers of a translation
+ * All vectors used during the processing of a token are allocated only once (at the start of the translation),
+ * so processing a token by the decoder stack doesn't allocate temporary arrays
+ */
+public class Workspace
+{
+    // The actual hidden state (updated in place by the decoders)
+    public final float[] hiddenState;
+
+    // Query, key and value vectors of the actual token, next to each other (self attention)
+    public final float[] queryKeyValue;
+
+    // Query vector of the actual token (cross-attention)
+    public final float[] query;
+
+    // Concatenated attention results of all heads
+    public final float[] attention;
+
+    // State of the attention calculation of a head (see TransformerUtil.attentionSegment)
+    public final float[] attentionState;
+
+    // Output of an attention or neuron block before the residual connection
+    public final float[] output;
+
+    // Hidden layer of the neuron block (<hiddenSize> * 4)
+    public final float[] neurons;
+
+    // Logits of all tokens (output of the last decoder multiplied by the token embeddings)
+    public final float[] logits;
+
+    public Workspace(Settings settings)
+    {
+        int hiddenSize = settings.getHiddenSize();
+
+        this.hiddenState = new float[hiddenSize];
+        this.queryKeyValue = new float[hiddenSize * 3];
+        this.query = new float[hiddenSize];
+        this.attention = new float[hiddenSize];
+        this.attentionState = new float[TransformerUtil.ATTENTION_STATE_SIZE];
+        this.output = new float[hiddenSize];
+        this.neurons = new float[hiddenSize * 4];
+        this.logits = new float[settings.getTokenCount()];
+    }
+}
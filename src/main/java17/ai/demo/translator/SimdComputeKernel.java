@@ -0,0 +1,445 @@
+package ai.demo.translator;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Compute kernel implementation using the Vector API (SIMD instructions, like AVX2 or AVX-512)
+ * It is compiled only into the Java 17+ part of the multi-release jar
+ */
+class SimdComputeKernel implements ComputeKernel
+{
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    // The narrower (int8) values are loaded into a vector with the same number of lanes as the float vector
+    // (It needs at least 256 bit float vectors, because the smallest vector shape is 64 bit)
+    private static final boolean HAS_NARROW_SPECIES = SPECIES.vectorBitSize() >= 256;
+    private static final VectorSpecies<Byte> BYTE_SPECIES = HAS_NARROW_SPECIES
+            ? VectorSpecies.of(byte.class, VectorShape.forBitSize(SPECIES.vectorBitSize() / 4))
+            : null;
+
+    // The 16-bit values are loaded into a vector with the same number of lanes as the float vector
+    private static final VectorSpecies<Short> SHORT_SPECIES = VectorSpecies.of(short.class, VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+    private static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class, SPECIES.vectorShape());
+
+    // Multiplier to convert the float16 exponent to the float exponent (2^(127 - 15))
+    private static final float FLOAT16_EXPONENT_ADJUST = 0x1.0p112f;
+
+    @Override
+    public float dotProduct(float[] vector1, int offset1, float[] vector2, int offset2, int length)
+    {
+        // Four independent accumulators to hide the latency of the fused multiply-add instructions
+        FloatVector sum1 = FloatVector.zero(SPECIES);
+        FloatVector sum2 = FloatVector.zero(SPECIES);
+        FloatVector sum3 = FloatVector.zero(SPECIES);
+        FloatVector sum4 = FloatVector.zero(SPECIES);
+
+        int i = 0;
+        int bound = length - length % (LANES * 4);
+        for (; i < bound; i += LANES * 4)
+        {
+            sum1 = FloatVector.fromArray(SPECIES, vector1, offset1 + i)
+                    .fma(FloatVector.fromArray(SPECIES, vector2, offset2 + i), sum1);
+            sum2 = FloatVector.fromArray(SPECIES, vector1, offset1 + i + LANES)
+                    .fma(FloatVector.fromArray(SPECIES, vector2, offset2 + i + LANES), sum2);
+            sum3 = FloatVector.fromArray(SPECIES, vector1, offset1 + i + LANES * 2)
+                    .fma(FloatVector.fromArray(SPECIES, vector2, offset2 + i + LANES * 2), sum3);
+            sum4 = FloatVector.fromArray(SPECIES, vector1, offset1 + i + LANES * 3)
+                    .fma(FloatVector.fromArray(SPECIES, vector2, offset2 + i + LANES * 3), sum4);
+        }
+
+        bound = length - length % LANES;
+        for (; i < bound; i += LANES)
+        {
+            sum1 = FloatVector.fromArray(SPECIES, vector1, offset1 + i)
+                    .fma(FloatVector.fromArray(SPECIES, vector2, offset2 + i), sum1);
+        }
+
+        float sum = sum1.add(sum2).add(sum3.add(sum4)).reduceLanes(VectorOperators.ADD);
+
+        // Remaining elements
+        for (; i < length; i++)
+        {
+            sum = sum + vector1[offset1 + i] * vector2[offset2 + i];
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void addScaled(float scalar, float[] vector, int offset, float[] target, int targetOffset, int length)
+    {
+        FloatVector scalarVector = FloatVector.broadcast(SPECIES, scalar);
+
+        int i = 0;
+        int bound = length - length % LANES;
+        for (; i < bound; i += LANES)
+        {
+            FloatVector.fromArray(SPECIES, vector, offset + i)
+                    .fma(scalarVector, FloatVector.fromArray(SPECIES, target, targetOffset + i))
+                    .intoArray(target, targetOffset + i);
+        }
+
+        // Remaining elements
+        for (; i < length; i++)
+        {
+            target[targetOffset + i] = target[targetOffset + i] + scalar * vector[offset + i];
+        }
+    }
+
+    @Override
+    public float dotProduct(float[] vector, int offset, byte[] values, int valuesOffset, int length)
+    {
+        FloatVector sum1 = FloatVector.zero(SPECIES);
+        FloatVector sum2 = FloatVector.zero(SPECIES);
+
+        int i = 0;
+        if (HAS_NARROW_SPECIES)
+        {
+            int bound = length - length % (LANES * 2);
+            for (; i < bound; i += LANES * 2)
+            {
+                sum1 = FloatVector.fromArray(SPECIES, vector, offset + i).fma(toFloats(values, valuesOffset + i), sum1);
+                sum2 = FloatVector.fromArray(SPECIES, vector, offset + i + LANES).fma(toFloats(values, valuesOffset + i + LANES), sum2);
+            }
+        }
+
+        float sum = sum1.add(sum2).reduceLanes(VectorOperators.ADD);
+
+        // Remaining elements
+        for (; i < length; i++)
+        {
+            sum = sum + vector[offset + i] * values[valuesOffset + i];
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void addScaled(float scalar, byte[] values, int offset, float[] target, int targetOffset, int length)
+    {
+        int i = 0;
+        if (HAS_NARROW_SPECIES)
+        {
+            FloatVector scalarVector = FloatVector.broadcast(SPECIES, scalar);
+
+            int bound = length - length % LANES;
+            for (; i < bound; i += LANES)
+            {
+                toFloats(values, offset + i)
+                        .fma(scalarVector, FloatVector.fromArray(SPECIES, target, targetOffset + i))
+                        .intoArray(target, targetOffset + i);
+            }
+        }
+
+        // Remaining elements
+        for (; i < length; i++)
+        {
+            target[targetOffset + i] = target[targetOffset + i] + scalar * values[offset + i];
+        }
+    }
+
+    private static FloatVector toFloats(byte[] values, int offset)
+    {
+        return (FloatVector) ByteVector.fromArray(BYTE_SPECIES, values, offset).convertShape(VectorOperators.B2F, SPECIES, 0);
+    }
+
+    @Override
+    public float dotProductFloat16(float[] vector, int offset, short[] values, int valuesOffset, int length)
+    {
+        FloatVector sum1 = FloatVector.zero(SPECIES);
+        FloatVector sum2 = FloatVector.zero(SPECIES);
+
+        int i = 0;
+        int bound = length - length % (LANES * 2);
+        for (; i < bound; i += LANES * 2)
+        {
+            sum1 = FloatVector.fromArray(SPECIES, vector, offset + i).fma(float16ToFloats(values, valuesOffset + i), sum1);
+            sum2 = FloatVector.fromArray(SPECIES, vector, offset + i + LANES).fma(float16ToFloats(values, valuesOffset + i + LANES), sum2);
+        }
+
+        float sum = sum1.add(sum2).reduceLanes(VectorOperators.ADD);
+
+        // Remaining elements
+        for (; i < length; i++)
+        {
+            sum = sum + vector[offset + i] * Float16Tensor.float16ToFloat(values[valuesOffset + i]);
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void addScaledFloat16(float scalar, short[] values, int offset, float[] target, int targetOffset, int length)
+    {
+        FloatVector scalarVector = FloatVector.broadcast(SPECIES, scalar);
+
+        int i = 0;
+        int bound = length - length % LANES;
+        for (; i < bound; i += LANES)
+        {
+            float16ToFloats(values, offset + i)
+                    .fma(scalarVector, FloatVector.fromArray(SPECIES, target, targetOffset + i))
+                    .intoArray(target, targetOffset + i);
+        }
+
+        // Remaining elements
+        for (; i < length; i++)
+        {
+            target[targetOffset + i] = target[targetOffset + i] + scalar * Float16Tensor.float16ToFloat(values[offset + i]);
+        }
+    }
+
+    @Override
+    public float dotProductBFloat16(float[] vector, int offset, short[] values, int valuesOffset, int length)
+    {
+        FloatVector sum1 = FloatVector.zero(SPECIES);
+        FloatVector sum2 = FloatVector.zero(SPECIES);
+
+        int i = 0;
+        int bound = length - length % (LANES * 2);
+        for (; i < bound; i += LANES * 2)
+        {
+            sum1 = FloatVector.fromArray(SPECIES, vector, offset + i).fma(bFloat16ToFloats(values, valuesOffset + i), sum1);
+            sum2 = FloatVector.fromArray(SPECIES, vector, offset + i + LANES).fma(bFloat16ToFloats(values, valuesOffset + i + LANES), sum2);
+        }
+
+        float sum = sum1.add(sum2).reduceLanes(VectorOperators.ADD);
+
+        // Remaining elements
+        for (; i < length; i++)
+        {
+            sum = sum + vector[offset + i] * Float16Tensor.bFloat16ToFloat(values[valuesOffset + i]);
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void addScaledBFloat16(float scalar, short[] values, int offset, float[] target, int targetOffset, int length)
+    {
+        FloatVector scalarVector = FloatVector.broadcast(SPECIES, scalar);
+
+        int i = 0;
+        int bound = length - length % LANES;
+        for (; i < bound; i += LANES)
+        {
+            bFloat16ToFloats(values, offset + i)
+                    .fma(scalarVector, FloatVector.fromArray(SPECIES, target, targetOffset + i))
+                    .intoArray(target, targetOffset + i);
+        }
+
+        // Remaining elements
+        for (; i < length; i++)
+        {
+            target[targetOffset + i] = target[targetOffset + i] + scalar * Float16Tensor.bFloat16ToFloat(values[offset + i]);
+        }
+    }
+
+    /**
+     * Convert float16 values to float: the exponent and mantissa bits are moved to the place of the float,
+     * and the exponent is adjusted by a multiplication (it works for the subnormal values as well, but not for infinity)
+     */
+    private static FloatVector float16ToFloats(short[] values, int offset)
+    {
+        IntVector bits = (IntVector) ShortVector.fromArray(SHORT_SPECIES, values, offset).convertShape(VectorOperators.S2I, INT_SPECIES, 0);
+
+        IntVector sign = bits.and(0x8000).lanewise(VectorOperators.LSHL, 16);
+        FloatVector magnitude = bits.and(0x7fff).lanewise(VectorOperators.LSHL, 13).reinterpretAsFloats().mul(FLOAT16_EXPONENT_ADJUST);
+
+        return magnitude.reinterpretAsInts().or(sign).reinterpretAsFloats();
+    }
+
+    /**
+     * Convert bfloat16 values to float (these are the upper 16 bits of the float)
+     */
+    private static FloatVector bFloat16ToFloats(short[] values, int offset)
+    {
+        IntVector bits = (IntVector) ShortVector.fromArray(SHORT_SPECIES, values, offset).convertShape(VectorOperators.S2I, INT_SPECIES, 0);
+
+        return bits.lanewise(VectorOperators.LSHL, 16).reinterpretAsFloats();
+    }
+
+    @Override
+    public void multiplyBlock(float[] input, int inputOffset, int inputStride, int rowCount, int inner,
+                              float[] matrix, int matrixOffset, int matrixStride,
+                              float[] target, int targetOffset, int targetStride, int length)
+    {
+        int row = 0;
+
+        // Four rows and two vectors of columns at a time: the 8 accumulators are kept in registers for the whole
+        // inner loop, and every loaded matrix vector is used for four rows
+        for (; row + 4 <= rowCount; row += 4)
+        {
+            int input0 = inputOffset + row * inputStride;
+            int input1 = input0 + inputStride;
+            int input2 = input1 + inputStride;
+            int input3 = input2 + inputStride;
+
+            int target0 = targetOffset + row * targetStride;
+            int target1 = target0 + targetStride;
+            int target2 = target1 + targetStride;
+            int target3 = target2 + targetStride;
+
+            int col = 0;
+            for (; col + LANES * 2 <= length; col += LANES * 2)
+            {
+                FloatVector sum00 = FloatVector.fromArray(SPECIES, target, target0 + col);
+                FloatVector sum01 = FloatVector.fromArray(SPECIES, target, target0 + col + LANES);
+                FloatVector sum10 = FloatVector.fromArray(SPECIES, target, target1 + col);
+                FloatVector sum11 = FloatVector.fromArray(SPECIES, target, target1 + col + LANES);
+                FloatVector sum20 = FloatVector.fromArray(SPECIES, target, target2 + col);
+                FloatVector sum21 = FloatVector.fromArray(SPECIES, target, target2 + col + LANES);
+                FloatVector sum30 = FloatVector.fromArray(SPECIES, target, target3 + col);
+                FloatVector sum31 = FloatVector.fromArray(SPECIES, target, target3 + col + LANES);
+
+                int matrixIndex = matrixOffset + col;
+                for (int i = 0; i < inner; i++)
+                {
+                    FloatVector matrix0 = FloatVector.fromArray(SPECIES, matrix, matrixIndex);
+                    FloatVector matrix1 = FloatVector.fromArray(SPECIES, matrix, matrixIndex + LANES);
+                    matrixIndex += matrixStride;
+
+                    FloatVector value = FloatVector.broadcast(SPECIES, input[input0 + i]);
+                    sum00 = matrix0.fma(value, sum00);
+                    sum01 = matrix1.fma(value, sum01);
+
+                    value = FloatVector.broadcast(SPECIES, input[input1 + i]);
+                    sum10 = matrix0.fma(value, sum10);
+                    sum11 = matrix1.fma(value, sum11);
+
+                    value = FloatVector.broadcast(SPECIES, input[input2 + i]);
+                    sum20 = matrix0.fma(value, sum20);
+                    sum21 = matrix1.fma(value, sum21);
+
+                    value = FloatVector.broadcast(SPECIES, input[input3 + i]);
+                    sum30 = matrix0.fma(value, sum30);
+                    sum31 = matrix1.fma(value, sum31);
+                }
+
+                sum00.intoArray(target, target0 + col);
+                sum01.intoArray(target, target0 + col + LANES);
+                sum10.intoArray(target, target1 + col);
+                sum11.intoArray(target, target1 + col + LANES);
+                sum20.intoArray(target, target2 + col);
+                sum21.intoArray(target, target2 + col + LANES);
+                sum30.intoArray(target, target3 + col);
+                sum31.intoArray(target, target3 + col + LANES);
+            }
+
+            // Remaining columns
+            if (col < length)
+            {
+                multiplyRows(input, input0, inputStride, 4, inner, matrix, matrixOffset + col, matrixStride,
+                        target, target0 + col, targetStride, length - col);
+            }
+        }
+
+        // Remaining rows
+        if (row < rowCount)
+        {
+            multiplyRows(input, inputOffset + row * inputStride, inputStride, rowCount - row, inner,
+                    matrix, matrixOffset, matrixStride, target, targetOffset + row * targetStride, targetStride, length);
+        }
+    }
+
+    private void multiplyRows(float[] input, int inputOffset, int inputStride, int rowCount, int inner,
+                              float[] matrix, int matrixOffset, int matrixStride,
+                              float[] target, int targetOffset, int targetStride, int length)
+    {
+        for (int i = 0; i < inner; i++)
+        {
+            for (int row = 0; row < rowCount; row++)
+            {
+                float value = input[inputOffset + row * inputStride + i];
+                addScaled(value, matrix, matrixOffset + i * matrixStride, target, targetOffset + row * targetStride, length);
+            }
+        }
+    }
+
+    @Override
+    public void addVectors(float[] vector1, float[] vector2, float[] result, int length)
+    {
+        int i = 0;
+        int bound = length - length % LANES;
+        for (; i < bound; i += LANES)
+        {
+            FloatVector.fromArray(SPECIES, vector1, i)
+                    .add(FloatVector.fromArray(SPECIES, vector2, i))
+                    .intoArray(result, i);
+        }
+
+        // Remaining elements
+        for (; i < length; i++)
+        {
+            result[i] = vector1[i] + vector2[i];
+        }
+    }
+
+    @Override
+    public float expAndSum(float[] vector, float max, float[] result, int length)
+    {
+        FloatVector maxVector = FloatVector.broadcast(SPECIES, max);
+        FloatVector sumVector = FloatVector.zero(SPECIES);
+
+        int i = 0;
+        int bound = length - length % LANES;
+        for (; i < bound; i += LANES)
+        {
+            FloatVector value = exp(FloatVector.fromArray(SPECIES, vector, i).sub(maxVector));
+            value.intoArray(result, i);
+            sumVector = sumVector.add(value);
+        }
+
+        float sum = sumVector.reduceLanes(VectorOperators.ADD);
+
+        // Remaining elements
+        for (; i < length; i++)
+        {
+            result[i] = Util.fastExp(vector[i] - max);
+            sum = sum + result[i];
+        }
+
+        return sum;
+    }
+
+    /**
+     * Vectorized version of Util.fastExp (the same operations in the same order, so the results are identical)
+     */
+    private static FloatVector exp(FloatVector x)
+    {
+        VectorMask<Float> underflow = x.lt(Util.EXP_MIN);
+        x = x.min(Util.EXP_MAX);
+
+        // x = n * ln(2) + r, where n is an integer and |r| <= ln(2) / 2
+        FloatVector n = x.mul(Util.LOG2_E).add(Util.ROUNDING_CONSTANT).sub(Util.ROUNDING_CONSTANT);
+        FloatVector r = x.sub(n.mul(Util.LN2_HIGH)).sub(n.mul(Util.LN2_LOW));
+
+        // exp(r) by Taylor polynomial
+        FloatVector p = FloatVector.broadcast(SPECIES, Util.EXP_COEFFICIENTS[0]);
+        for (int i = 1; i < Util.EXP_COEFFICIENTS.length; i++)
+        {
+            p = p.mul(r).add(Util.EXP_COEFFICIENTS[i]);
+        }
+
+        // 2^n is built directly in the exponent bits
+        FloatVector scale = ((IntVector) n.convertShape(VectorOperators.F2I, INT_SPECIES, 0))
+                .add(127).lanewise(VectorOperators.LSHL, 23)
+                .reinterpretAsFloats();
+
+        return p.mul(scale).blend(0f, underflow);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "SIMD (" + SPECIES.vectorBitSize() + " bit)";
+    }
+}